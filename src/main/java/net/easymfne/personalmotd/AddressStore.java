@@ -0,0 +1,248 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Level;
+
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * Thread-safe Address->Name map backed by a file that may be shared between
+ * several servers, indexed by address prefix and by player.
+ */
+public class AddressStore extends SharedMap<InetAddress> {
+    
+    /* Path separator for the address map, which no address contains */
+    private static final char SEPARATOR = '/';
+    
+    private PersonalMotd plugin;
+    
+    private final Map<InetAddress, String> map;
+    
+    /* Indexes over the map, updated together under indexLock */
+    private final Object indexLock = new Object();
+    private final ConcurrentNavigableMap<String, String> sorted;
+    private final ConcurrentMap<String, Set<InetAddress>> byPlayer;
+    
+    /**
+     * Instantiate the store and read any existing mappings from disk.
+     * 
+     * @param plugin
+     *            Reference to PersonalMotd plugin instance
+     * @param folder
+     *            Folder containing the address map file
+     */
+    public AddressStore(PersonalMotd plugin, File folder) {
+        super(new File(folder, "addressmap.yml"));
+        this.plugin = plugin;
+        map = new ConcurrentHashMap<InetAddress, String>();
+        sorted = new ConcurrentSkipListMap<String, String>();
+        byPlayer = new ConcurrentHashMap<String, Set<InetAddress>>();
+        try {
+            synchronize();
+        } catch (IOException e) {
+            plugin.fancyLog(Level.SEVERE, "Failed to load address map: "
+                    + e.getMessage());
+        }
+    }
+    
+    /**
+     * @param address
+     *            Address to look up
+     * @return Name mapped to the address, or null if none
+     */
+    @Override
+    public String get(InetAddress address) {
+        return map.get(address);
+    }
+    
+    /**
+     * @param playerId
+     *            Player to look up
+     * @return Addresses mapped to the player, in no particular order
+     */
+    public Set<InetAddress> getAddresses(String playerId) {
+        Set<InetAddress> addresses = byPlayer.get(playerId.toLowerCase());
+        if (addresses == null) {
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(addresses);
+    }
+    
+    /**
+     * @param prefix
+     *            Leading part of the address, or an empty string for all
+     * @return Read-only view of matching Address,Name pairs, sorted by address
+     */
+    public SortedMap<String, String> getByPrefix(String prefix) {
+        if (prefix.isEmpty()) {
+            return Collections.unmodifiableSortedMap(sorted);
+        }
+        return Collections.unmodifiableSortedMap(sorted.subMap(prefix,
+                prefix + Character.MAX_VALUE));
+    }
+    
+    /**
+     * @return Read-only view of the Address,Name pairs
+     */
+    public Map<InetAddress, String> getMap() {
+        return Collections.unmodifiableMap(map);
+    }
+    
+    /**
+     * Map an address to a name, marking it for publication on the next
+     * synchronization.
+     * 
+     * @param address
+     *            Address of the player
+     * @param playerId
+     *            Name of the player
+     */
+    public void put(InetAddress address, String playerId) {
+        if (!playerId.equals(index(address, playerId))) {
+            publish(address, playerId);
+        }
+    }
+    
+    /**
+     * Store a mapping and bring the sorted and per-player indexes up to date.
+     * 
+     * @param address
+     *            Address of the player
+     * @param playerId
+     *            Name of the player
+     * @return Name previously mapped to the address, or null if none
+     */
+    private String index(InetAddress address, String playerId) {
+        synchronized (indexLock) {
+            String previous = map.put(address, playerId);
+            if (playerId.equals(previous)) {
+                return previous;
+            }
+            if (previous != null) {
+                Set<InetAddress> addresses = byPlayer.get(previous
+                        .toLowerCase());
+                if (addresses != null) {
+                    addresses.remove(address);
+                    if (addresses.isEmpty()) {
+                        byPlayer.remove(previous.toLowerCase());
+                    }
+                }
+            }
+            Set<InetAddress> addresses = byPlayer.get(playerId.toLowerCase());
+            if (addresses == null) {
+                addresses = Collections.newSetFromMap(
+                        new ConcurrentHashMap<InetAddress, Boolean>());
+                byPlayer.put(playerId.toLowerCase(), addresses);
+            }
+            addresses.add(address);
+            sorted.put(address.getHostAddress(), playerId);
+            return previous;
+        }
+    }
+    
+    /**
+     * Read mappings from a YAML file. Each address is stored as a single key,
+     * but files written by older versions store an IPv4 address as a nested
+     * section per octet, so nested keys are joined back together.
+     * 
+     * @param source
+     *            File to read
+     * @return Map of the mappings found
+     * @throws IOException
+     */
+    @Override
+    protected Map<InetAddress, String> read(File source) throws IOException {
+        Map<InetAddress, String> result = new HashMap<InetAddress, String>();
+        if (!source.isFile()) {
+            return result;
+        }
+        YamlConfiguration addressConfig = new YamlConfiguration();
+        addressConfig.options().pathSeparator(SEPARATOR);
+        try {
+            addressConfig.load(source);
+        } catch (InvalidConfigurationException e) {
+            throw new IOException("Invalid address map: " + e.getMessage());
+        }
+        for (String key : addressConfig.getKeys(true)) {
+            if (addressConfig.isConfigurationSection(key)) {
+                continue;
+            }
+            String address = key.replace(SEPARATOR, '.');
+            String playerId = addressConfig.getString(key);
+            try {
+                result.put(InetAddress.getByName(address), playerId);
+            } catch (UnknownHostException e) {
+                plugin.getLogQueue().log(Level.WARNING, "unknown hosts",
+                        "Unknown host: " + address + " (" + playerId + ")");
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * @return Number of stored mappings
+     */
+    public int size() {
+        return map.size();
+    }
+    
+    /**
+     * Store a number of mappings, keeping the indexes up to date.
+     * 
+     * @param mappings
+     *            Address,Name pairs to store
+     */
+    @Override
+    protected void store(Map<InetAddress, String> mappings) {
+        for (Entry<InetAddress, String> entry : mappings.entrySet()) {
+            index(entry.getKey(), entry.getValue());
+        }
+    }
+    
+    /**
+     * @param mappings
+     *            Mappings to write
+     * @return Address map holding the mappings, keyed by address
+     */
+    @Override
+    protected FileConfiguration toConfiguration(
+            Map<InetAddress, String> mappings) {
+        YamlConfiguration addressConfig = new YamlConfiguration();
+        addressConfig.options().pathSeparator(SEPARATOR);
+        for (Entry<InetAddress, String> entry : mappings.entrySet()) {
+            addressConfig
+                    .set(entry.getKey().getHostAddress(), entry.getValue());
+        }
+        return addressConfig;
+    }
+    
+}
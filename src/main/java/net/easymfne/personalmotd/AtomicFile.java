@@ -0,0 +1,94 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.bukkit.configuration.file.FileConfiguration;
+
+/**
+ * Writes files by way of uniquely named temporary files beside them, so that
+ * other servers sharing a folder never read a partially written file and
+ * concurrent writers of the same file never share a temporary file.
+ */
+public final class AtomicFile {
+    
+    private AtomicFile() {
+    }
+    
+    /**
+     * @param file
+     *            File about to be written
+     * @return New empty temporary file in the same folder, named after it
+     * @throws IOException
+     */
+    public static File createTemp(File file) throws IOException {
+        return File.createTempFile(file.getName() + ".", ".tmp",
+                file.getParentFile());
+    }
+    
+    /**
+     * Replace a file with a temporary file in one step, where the file system
+     * allows it. The temporary file is deleted if it cannot be moved.
+     * 
+     * @param temp
+     *            Temporary file holding the new contents
+     * @param file
+     *            File to replace
+     * @throws IOException
+     */
+    public static void replace(File temp, File file) throws IOException {
+        try {
+            try {
+                Files.move(temp.toPath(), file.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw new IOException("Unable to replace " + file.getPath()
+                    + ": " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Save a configuration, replacing the file in one step.
+     * 
+     * @param config
+     *            Configuration to save
+     * @param file
+     *            File to replace
+     * @throws IOException
+     */
+    public static void save(FileConfiguration config, File file)
+            throws IOException {
+        File temp = createTemp(file);
+        try {
+            config.save(temp);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        replace(temp, file);
+    }
+    
+}
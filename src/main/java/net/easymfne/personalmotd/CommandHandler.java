@@ -16,8 +16,11 @@ package net.easymfne.personalmotd;
 
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.SortedMap;
 
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandSender;
@@ -28,6 +31,12 @@ import org.bukkit.command.TabExecutor;
  */
 public class CommandHandler implements TabExecutor {
     
+    /* Number of address mappings shown per page */
+    private static final int PAGE_SIZE = 10;
+    
+    /* Archive used by export and import when none is named */
+    private static final String DEFAULT_ARCHIVE = "export";
+    
     private PersonalMotd plugin = null;
     private List<String> subcommands;
     
@@ -43,6 +52,10 @@ public class CommandHandler implements TabExecutor {
         plugin.getCommand("personalmotd").setExecutor(this);
         subcommands = new ArrayList<String>();
         subcommands.add("addresses");
+        subcommands.add("cache");
+        subcommands.add("export");
+        subcommands.add("import");
+        subcommands.add("pings");
         subcommands.add("reload");
     }
     
@@ -63,15 +76,42 @@ public class CommandHandler implements TabExecutor {
             return false;
         }
         if (args[0].equalsIgnoreCase("addresses")) {
-            sender.sendMessage("Stored address mappings: "
-                    + plugin.getAddressMap().size());
-            for (Entry<InetAddress, String> entry : plugin.getAddressMap()
-                    .entrySet()) {
-                sender.sendMessage("  " + entry.getKey().getHostAddress()
-                        + " -> " + entry.getValue());
+            showAddresses(sender, args);
+            return true;
+        }
+        if (args[0].equalsIgnoreCase("cache")) {
+            IconCache iconCache = plugin.getConf().getIconCache();
+            long hits = iconCache.getHits();
+            long lookups = hits + iconCache.getMisses();
+            sender.sendMessage("Cached icons: " + iconCache.size() + " ("
+                    + (iconCache.getMemoryUsed() / 1024) + "KB)");
+            sender.sendMessage("  Hit rate: "
+                    + (lookups == 0 ? 0 : 100 * hits / lookups) + "% ("
+                    + hits + "/" + lookups + ")");
+            IconEncoder iconEncoder = plugin.getConf().getIconEncoder();
+            if (iconEncoder.getCount() > 0) {
+                sender.sendMessage("  Icon size: "
+                        + iconEncoder.getAverageSentBytes()
+                        + " bytes average per ping (unoptimized "
+                        + iconEncoder.getAveragePlainBytes() + " bytes), "
+                        + iconEncoder.getAverageEncodedBytes()
+                        + " bytes on disk");
             }
             return true;
         }
+        if (args[0].equalsIgnoreCase("export")
+                || args[0].equalsIgnoreCase("import")) {
+            transferState(sender, args);
+            return true;
+        }
+        if (args[0].equalsIgnoreCase("pings")) {
+            PingLimiter pingLimiter = plugin.getConf().getPingLimiter();
+            sender.sendMessage("Pings since limits were loaded:");
+            sender.sendMessage("  Personalized: " + pingLimiter.getServed());
+            sender.sendMessage("  Shed (default response): "
+                    + pingLimiter.getShed());
+            return true;
+        }
         if (args[0].equalsIgnoreCase("reload")) {
             plugin.reload();
             sender.sendMessage("Configuration reloaded from disk.");
@@ -81,6 +121,94 @@ public class CommandHandler implements TabExecutor {
         return false;
     }
     
+    /**
+     * @param arg
+     *            Command argument
+     * @return The argument as a page number, or -1 if it is not one
+     */
+    private int parsePage(String arg) {
+        try {
+            return Integer.parseInt(arg);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Show stored address mappings a page at a time. Usage: "/personalmotd
+     * addresses [player|prefix] [page]", where a prefix contains '.' or ':'.
+     * 
+     * @param sender
+     *            Sender of the command
+     * @param args
+     *            Command arguments
+     */
+    private void showAddresses(CommandSender sender, String[] args) {
+        AddressStore store = plugin.getAddressStore();
+        String query = "";
+        int page = 1;
+        if (args.length > 1) {
+            if (args.length == 2 && parsePage(args[1]) > 0) {
+                page = parsePage(args[1]);
+            } else {
+                query = args[1];
+                if (args.length > 2) {
+                    page = Math.max(1, parsePage(args[2]));
+                }
+            }
+        }
+        if (!query.isEmpty() && query.indexOf('.') < 0
+                && query.indexOf(':') < 0) {
+            Set<InetAddress> addresses = store.getAddresses(query);
+            sender.sendMessage("Addresses mapped to " + query + ": "
+                    + addresses.size());
+            for (InetAddress address : addresses) {
+                sender.sendMessage("  " + address.getHostAddress());
+            }
+            return;
+        }
+        SortedMap<String, String> matches = store.getByPrefix(query);
+        int count = query.isEmpty() ? store.size() : matches.size();
+        int pages = Math.max(1, (count + PAGE_SIZE - 1) / PAGE_SIZE);
+        page = Math.min(page, pages);
+        sender.sendMessage("Stored address mappings"
+                + (query.isEmpty() ? "" : " starting with " + query) + ": "
+                + count + " (page " + page + "/" + pages + ")");
+        Iterator<Entry<String, String>> iter = matches.entrySet().iterator();
+        for (int i = 0; i < (page - 1) * PAGE_SIZE && iter.hasNext(); i++) {
+            iter.next();
+        }
+        for (int i = 0; i < PAGE_SIZE && iter.hasNext(); i++) {
+            Entry<String, String> entry = iter.next();
+            sender.sendMessage("  " + entry.getKey() + " -> "
+                    + entry.getValue());
+        }
+    }
+    
+    /**
+     * Start an export or import of the plugin's state in the background.
+     * Usage: "/personalmotd export|import [file]", where the file is in the
+     * plugin's data folder and always has the archive extension.
+     * 
+     * @param sender
+     *            Sender of the command
+     * @param args
+     *            Command arguments
+     */
+    private void transferState(CommandSender sender, String[] args) {
+        String name = StateArchive.getArchiveName(args.length > 1 ? args[1]
+                : DEFAULT_ARCHIVE);
+        boolean export = args[0].equalsIgnoreCase("export");
+        boolean started = export ? StateArchive.startExport(plugin, sender,
+                name) : StateArchive.startImport(plugin, sender, name);
+        if (!started) {
+            sender.sendMessage("An export or import is already running.");
+        } else {
+            sender.sendMessage((export ? "Exporting to " : "Importing from ")
+                    + name + " in the background...");
+        }
+    }
+    
     /**
      * Handle tab-completion using defined list of subcommands.
      */
@@ -17,13 +17,26 @@ package net.easymfne.personalmotd;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 
 import javax.imageio.ImageIO;
 
+import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.util.CachedServerIcon;
 
 /**
@@ -31,12 +44,55 @@ import org.bukkit.util.CachedServerIcon;
  */
 public class Conf {
     
+    /**
+     * Name tag settings, replaced as a whole on reload so that a ping never
+     * sees a mix of old and new values. Also holds the server MOTD as already
+     * personalized for each player, so that repeat pings allocate nothing.
+     */
+    private static class NameTags {
+        /* Upper limit on the number of players with a stored MOTD */
+        private static final int MAX_PERSONALIZED = 10000;
+        
+        private final String placeholder;
+        private final String defaultName;
+        private final String stockMotd;
+        private final String defaultMotd;
+        private final ConcurrentHashMap<String, String> personalized;
+        
+        public NameTags(String placeholder, String defaultName,
+                String stockMotd) {
+            this.placeholder = placeholder;
+            this.defaultName = defaultName;
+            this.stockMotd = stockMotd;
+            defaultMotd = replace(stockMotd, placeholder, defaultName);
+            personalized = new ConcurrentHashMap<String, String>();
+        }
+    }
+    
+    /* Age after which unreferenced skins and icons are deleted */
+    private static final long SWEEP_AGE = 24L * 60L * 60L * 1000L;
+    
     private PersonalMotd plugin = null;
     
-    private BufferedImage defaultImage;
-    private CachedServerIcon defaultIcon;
+    /* Replaced by reloads while pings read them from other threads */
+    private volatile BufferedImage defaultImage;
+    private volatile CachedServerIcon defaultIcon;
+    private volatile SkinFetcher skinFetcher;
+    private volatile PingLimiter pingLimiter;
+    private volatile IconMode iconMode;
+    
+    /* Replaced by reloads, and by pings once the server MOTD has changed */
+    private final AtomicReference<NameTags> nameTags;
+    
+    private File storageFolder;
     private File skinFolder;
     private File iconFolder;
+    private IconCache iconCache;
+    private IconEncoder iconEncoder;
+    private SkinIndex skinIndex;
+    
+    /* Whether the deprecated skin-url setting has been warned about */
+    private boolean skinUrlWarned = false;
     
     /**
      * Instantiate the class and give it a reference back to the plugin itself.
@@ -46,24 +102,33 @@ public class Conf {
      */
     public Conf(PersonalMotd plugin) {
         this.plugin = plugin;
-        skinFolder = new File(plugin.getDataFolder(), "player-skins");
+        nameTags = new AtomicReference<NameTags>();
+        String storage = plugin.getConfig().getString("storage-folder", "");
+        storageFolder = storage.isEmpty() ? plugin.getDataFolder() : new File(
+                storage);
+        skinFolder = new File(storageFolder, "player-skins");
         if (!skinFolder.exists()) {
             skinFolder.mkdirs();
         }
-        iconFolder = new File(plugin.getDataFolder(), "personal-icons");
+        iconFolder = new File(storageFolder, "personal-icons");
         if (!iconFolder.exists()) {
             iconFolder.mkdirs();
         }
+        iconEncoder = new IconEncoder();
+        skinIndex = new SkinIndex(plugin, storageFolder);
+        iconCache = new IconCache(plugin, iconFolder, new File(
+                plugin.getDataFolder(), "iconrecency.yml"), 1024L * plugin
+                .getConfig().getInt("icon-cache.memory", 8192));
         load();
     }
     
     /**
-     * @param playerId
-     *            Player to fetched cached skin for
-     * @return Image of skin, or null in none cached
+     * @param hash
+     *            Hash of the skin
+     * @return Image of skin, or null if none cached
      */
-    public BufferedImage getCachedPlayerSkin(String playerId) {
-        File skin = new File(skinFolder, playerId + ".png");
+    public BufferedImage getCachedSkin(String hash) {
+        File skin = new File(skinFolder, hash + ".png");
         try {
             return ImageIO.read(skin);
         } catch (IOException e) {
@@ -81,6 +146,14 @@ public class Conf {
         return plugin.getServer().getServerIcon();
     }
     
+    /**
+     * @return Server MOTD with the default name tag, for pings given the
+     *         default response
+     */
+    public String getDefaultMotd() {
+        return getNameTags().defaultMotd;
+    }
+    
     /**
      * @return Default server icon image
      */
@@ -106,19 +179,14 @@ public class Conf {
     /**
      * @param playerId
      *            Player name
-     * @return Skin image fetched from configured URL, or null if not found
+     * @return Skin image fetched from the configured sources, or null if not
+     *         found
+     * @throws IOException
+     *             If none of the sources could be asked
      */
-    public BufferedImage getFetchedPlayerSkin(String playerId) {
-        try {
-            URL skinUrl = new URL(
-                    plugin.getConfig()
-                            .getString("skin-url",
-                                    "http://s3.amazonaws.com/MinecraftSkins/{PLAYERNAME}.png")
-                            .replace("{PLAYERNAME}", playerId));
-            return ImageIO.read(skinUrl);
-        } catch (Exception e) {
-            return null;
-        }
+    public BufferedImage getFetchedPlayerSkin(String playerId)
+            throws IOException {
+        return skinFetcher.fetch(playerId);
     }
     
     /**
@@ -145,26 +213,157 @@ public class Conf {
         return values;
     }
     
+    /**
+     * @return In-memory cache of personalized icons
+     */
+    public IconCache getIconCache() {
+        return iconCache;
+    }
+    
+    /**
+     * @return Encoder used for personalized icons
+     */
+    public IconEncoder getIconEncoder() {
+        return iconEncoder;
+    }
+    
+    /**
+     * @return Milliseconds allowed for loading icons into memory on startup
+     */
+    public long getIconCacheWarmUpTime() {
+        return plugin.getConfig().getLong("icon-cache.warmup-time", 5000L);
+    }
+    
     /**
      * @return Desired icon-selection mode
      */
     public IconMode getIconMode() {
-        return IconMode.valueOf(plugin.getConfig().getString("icon-mode",
-                "PLAYER"));
+        return iconMode;
+    }
+    
+    /**
+     * @return Messages of each kind logged per interval before summarizing
+     */
+    public int getLogBurst() {
+        return plugin.getConfig().getInt("logging.burst", 3);
+    }
+    
+    /**
+     * @return Milliseconds per log rate-limiting interval
+     */
+    public long getLogInterval() {
+        return 1000L * plugin.getConfig().getInt("logging.interval", 10);
+    }
+    
+    /**
+     * @return Desired logging verbosity, falling back to NORMAL if it is
+     *         invalid
+     */
+    public LogVerbosity getLogVerbosity() {
+        String verbosity = plugin.getConfig().getString("logging.verbosity",
+                "NORMAL");
+        try {
+            return LogVerbosity.valueOf(verbosity.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            plugin.fancyLog(Level.WARNING, "Unknown logging verbosity: "
+                    + verbosity);
+            return LogVerbosity.NORMAL;
+        }
     }
     
     /**
      * @return Default text to replace placeholder with when no name found
      */
     public String getNameTagDefault() {
-        return plugin.getConfig().getString("name-tag-default", "Guest");
+        return nameTags.get().defaultName;
+    }
+    
+    /**
+     * @return Limiter deciding which pings get a personalized response
+     */
+    public PingLimiter getPingLimiter() {
+        return pingLimiter;
+    }
+    
+    /**
+     * @return Fetcher of skins from the configured sources
+     */
+    public SkinFetcher getSkinFetcher() {
+        return skinFetcher;
+    }
+    
+    /**
+     * @return Milliseconds a login may skip fetching a revalidated skin
+     */
+    public long getSkinRefreshLoginSkip() {
+        return 60000L * plugin.getConfig().getInt("skin-refresh.login-skip",
+                60);
+    }
+    
+    /**
+     * @return Fraction by which each refresh period is randomly varied
+     */
+    public double getSkinRefreshJitter() {
+        return plugin.getConfig().getDouble("skin-refresh.jitter", 0.2);
+    }
+    
+    /**
+     * @return Milliseconds to keep refreshing skins of players who have left
+     */
+    public long getSkinRefreshKeep() {
+        return 3600000L * plugin.getConfig().getInt("skin-refresh.keep", 72);
+    }
+    
+    /**
+     * @return Milliseconds between refreshes of each player's skin, or 0 if
+     *         background refreshing is disabled
+     */
+    public long getSkinRefreshPeriod() {
+        return 60000L * plugin.getConfig().getInt("skin-refresh.period", 360);
+    }
+    
+    /**
+     * @return Maximum skins refreshed per minute
+     */
+    public int getSkinRefreshRate() {
+        return plugin.getConfig().getInt("skin-refresh.max-per-minute", 30);
+    }
+    
+    /**
+     * @return Folder holding the address map, skins, and icons
+     */
+    public File getStorageFolder() {
+        return storageFolder;
+    }
+    
+    /**
+     * @return Ticks between synchronizations with the shared storage folder
+     */
+    public long getStorageSyncInterval() {
+        return 20L * plugin.getConfig().getInt("storage-sync-interval", 30);
     }
     
     /**
      * @return Placeholder used for name substitutions
      */
     public String getNameTagPlaceholder() {
-        return plugin.getConfig().getString("name-tag-placeholder", "{PLAYER}");
+        return nameTags.get().placeholder;
+    }
+    
+    /**
+     * @return Name tag settings, rebuilt first if the server MOTD has changed
+     *         since they were built, such as by a command or another plugin
+     */
+    private NameTags getNameTags() {
+        NameTags tags = nameTags.get();
+        String motd = plugin.getServer().getMotd();
+        if (!motd.equals(tags.stockMotd)) {
+            NameTags rebuilt = new NameTags(tags.placeholder,
+                    tags.defaultName, motd);
+            nameTags.compareAndSet(tags, rebuilt);
+            return rebuilt;
+        }
+        return tags;
     }
     
     /**
@@ -176,26 +375,327 @@ public class Conf {
         if (playerId == null) {
             return null;
         }
-        File icon = new File(iconFolder, playerId + ".png");
-        if (icon.exists()) {
+        String hash = skinIndex.get(playerId);
+        if (hash == null) {
+            return null;
+        }
+        return iconCache.get(hash);
+    }
+    
+    /**
+     * @return Hashes of all cached skins, most recently changed first
+     */
+    public List<String> getSkinHashes() {
+        File[] files = skinFolder.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return file.isFile() && name.endsWith(".png")
+                        && SkinIndex.isHash(name.substring(0,
+                                name.length() - 4));
+            }
+        });
+        List<String> hashes = new ArrayList<String>();
+        if (files == null) {
+            return hashes;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.valueOf(b.lastModified()).compareTo(
+                        a.lastModified());
+            }
+        });
+        for (File file : files) {
+            String name = file.getName();
+            hashes.add(name.substring(0, name.length() - 4));
+        }
+        return hashes;
+    }
+    
+    /**
+     * @param hash
+     *            Hash of the skin
+     * @return File holding the personalized icon rendered from the skin
+     */
+    public File getIconFile(String hash) {
+        return new File(iconFolder, hash + ".png");
+    }
+    
+    /**
+     * @param hash
+     *            Hash of the skin
+     * @return File holding the skin
+     */
+    public File getSkinFile(String hash) {
+        return new File(skinFolder, hash + ".png");
+    }
+    
+    /**
+     * @return Index of which skin each player has
+     */
+    public SkinIndex getSkinIndex() {
+        return skinIndex;
+    }
+    
+    /**
+     * @param hash
+     *            Hash of the skin
+     * @return Whether an icon has been rendered for the skin
+     */
+    public boolean hasPersonalizedIcon(String hash) {
+        return new File(iconFolder, hash + ".png").isFile();
+    }
+    
+    /**
+     * Load all cached values/images.
+     */
+    private void load() {
+        loadNameTags();
+        loadIconMode();
+        loadSkinFetcher();
+        loadBaseIcon();
+        loadPingLimiter();
+    }
+    
+    /**
+     * Cache the icon-selection mode, falling back to PLAYER if it is invalid.
+     */
+    private void loadIconMode() {
+        String mode = plugin.getConfig().getString("icon-mode", "PLAYER");
+        try {
+            iconMode = IconMode.valueOf(mode.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            plugin.fancyLog(Level.WARNING, "Unknown icon-mode: " + mode);
+            iconMode = IconMode.PLAYER;
+        }
+    }
+    
+    /**
+     * Merge the address map, skin index, skins, and icons left in the plugin's
+     * data folder into a separate storage folder, so that they are not
+     * abandoned when one is first configured. Where both hold a mapping, the
+     * storage folder's is kept. Merged maps are renamed and merged files
+     * removed, so that nothing is merged twice.
+     * 
+     * @return Number of mappings and files merged
+     */
+    public int mergeDataFolder() {
+        File dataFolder = plugin.getDataFolder();
+        if (storageFolder.getAbsoluteFile().equals(
+                dataFolder.getAbsoluteFile())) {
+            return 0;
+        }
+        int count = moveFiles(new File(dataFolder, "player-skins"),
+                skinFolder);
+        count += moveFiles(new File(dataFolder, "personal-icons"), iconFolder);
+        count += mergeMap(skinIndex, new File(dataFolder, "skinindex.yml"));
+        count += mergeMap(plugin.getAddressStore(), new File(dataFolder,
+                "addressmap.yml"));
+        return count;
+    }
+    
+    /**
+     * Merge a map file into a shared map and publish the result, then rename
+     * the file so it is not merged again.
+     * 
+     * @param map
+     *            Map in the storage folder
+     * @param file
+     *            Map file in the data folder
+     * @return Number of mappings merged
+     */
+    private int mergeMap(SharedMap<?> map, File file) {
+        if (!file.isFile()) {
+            return 0;
+        }
+        try {
+            int merged = map.merge(file);
+            map.synchronize();
+            if (!file.renameTo(new File(file.getPath() + ".merged"))) {
+                throw new IOException("Unable to rename " + file.getPath());
+            }
+            return merged;
+        } catch (IOException e) {
+            plugin.fancyLog(Level.WARNING, "Failed to merge " + file.getPath()
+                    + " into the storage folder: " + e.getMessage());
+            return 0;
+        }
+    }
+    
+    /**
+     * Convert skins and icons stored per player by older versions into files
+     * stored per distinct skin, recording each player's skin in the index.
+     * Icons without a skin are discarded, as they can never be matched.
+     * 
+     * @return Number of players converted
+     */
+    public int migratePlayerFiles() {
+        File[] skins = skinFolder.listFiles();
+        if (skins == null) {
+            return 0;
+        }
+        int count = 0;
+        for (File skinFile : skins) {
+            String name = skinFile.getName();
+            if (!name.endsWith(".png")) {
+                continue;
+            }
+            String playerId = name.substring(0, name.length() - 4);
+            if (SkinIndex.isHash(playerId)) {
+                continue;
+            }
+            BufferedImage skin;
+            try {
+                skin = ImageIO.read(skinFile);
+            } catch (IOException e) {
+                skin = null;
+            }
+            if (skin != null) {
+                String hash = SkinIndex.hashOf(skin);
+                moveOrDelete(skinFile, new File(skinFolder, hash + ".png"));
+                moveOrDelete(new File(iconFolder, name), new File(iconFolder,
+                        hash + ".png"));
+                referenceSkin(playerId, hash);
+                count++;
+            }
+        }
+        File[] icons = iconFolder.listFiles();
+        for (int i = 0; icons != null && i < icons.length; i++) {
+            String name = icons[i].getName();
+            if (name.endsWith(".png")
+                    && !SkinIndex.isHash(name.substring(0,
+                            name.length() - 4))) {
+                icons[i].delete();
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Move the images in a folder into another, which may be on another file
+     * system, deleting any that are already there. Each is copied by way of
+     * a temporary file, so that other servers never read a partial image, and
+     * is given a new modification time, so that their sweeps spare it until
+     * the index entries referring to it are published.
+     * 
+     * @param source
+     *            Folder to empty
+     * @param destination
+     *            Folder to move the images into
+     * @return Number of images moved
+     */
+    private int moveFiles(File source, File destination) {
+        File[] files = source.listFiles();
+        int count = 0;
+        for (int i = 0; files != null && i < files.length; i++) {
+            if (!files[i].isFile() || !files[i].getName().endsWith(".png")) {
+                continue;
+            }
+            File target = new File(destination, files[i].getName());
             try {
-                return plugin.getServer().loadServerIcon(icon);
-            } catch (Exception e) {
-                e.printStackTrace();
+                if (!target.exists()) {
+                    File temp = AtomicFile.createTemp(target);
+                    Files.copy(files[i].toPath(), temp.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                    temp.setLastModified(System.currentTimeMillis());
+                    AtomicFile.replace(temp, target);
+                    count++;
+                }
+                files[i].delete();
+            } catch (IOException e) {
+                plugin.fancyLog(Level.WARNING, "Failed to move "
+                        + files[i].getPath() + " into the storage folder: "
+                        + e.getMessage());
             }
         }
-        return null;
+        source.delete();
+        return count;
+    }
+    
+    /**
+     * Move a file to a destination, or delete it if the destination already
+     * exists.
+     * 
+     * @param source
+     *            File to move
+     * @param destination
+     *            New location of the file
+     */
+    private void moveOrDelete(File source, File destination) {
+        if (!source.isFile()) {
+            return;
+        }
+        if (destination.exists() || !source.renameTo(destination)) {
+            source.delete();
+        }
+    }
+    
+    /**
+     * @param motd
+     *            MOTD text containing the name tag placeholder
+     * @param playerId
+     *            Name to substitute, or null to use the default name
+     * @return Personalized MOTD text
+     */
+    public String personalizeMotd(String motd, String playerId) {
+        NameTags tags = getNameTags();
+        if (!motd.equals(tags.stockMotd)) {
+            return replace(motd, tags.placeholder, playerId != null ? playerId
+                    : tags.defaultName);
+        }
+        if (playerId == null) {
+            return tags.defaultMotd;
+        }
+        String result = tags.personalized.get(playerId);
+        if (result == null) {
+            result = replace(motd, tags.placeholder, playerId);
+            if (tags.personalized.size() < NameTags.MAX_PERSONALIZED) {
+                tags.personalized.put(playerId, result);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Replace every occurrence of a placeholder, without the regular
+     * expression machinery of String.replace on older Java versions.
+     * 
+     * @param text
+     *            Text containing placeholders
+     * @param placeholder
+     *            Placeholder to replace
+     * @param value
+     *            Replacement value
+     * @return Text with placeholders replaced, or the same text if it has none
+     */
+    private static String replace(String text, String placeholder,
+            String value) {
+        int index = placeholder.isEmpty() ? -1 : text.indexOf(placeholder);
+        if (index < 0) {
+            return text;
+        }
+        StringBuilder builder = new StringBuilder(text.length()
+                + value.length());
+        int start = 0;
+        while (index >= 0) {
+            builder.append(text, start, index).append(value);
+            start = index + placeholder.length();
+            index = text.indexOf(placeholder, start);
+        }
+        return builder.append(text, start, text.length()).toString();
     }
     
     /**
      * Fetch and cache the base icon for the server list.
      */
-    private void load() {
+    private void loadBaseIcon() {
         File defaultFile = new File(plugin.getConfig().getString("base-icon",
                 "server-icon.png"));
         try {
-            defaultImage = ImageIO.read(defaultFile);
+            BufferedImage image = ImageIO.read(defaultFile);
             defaultIcon = plugin.getServer().loadServerIcon(defaultFile);
+            defaultImage = image;
         } catch (Exception e) {
             plugin.fancyLog(Level.SEVERE, "Error loading base server icon! {"
                     + defaultFile.getAbsolutePath() + "}");
@@ -203,44 +703,252 @@ public class Conf {
     }
     
     /**
-     * Reload all cached values/images.
+     * Cache the name tag settings used for every MOTD.
      */
-    public void reload() {
-        load();
+    private void loadNameTags() {
+        String placeholder = plugin.getConfig().getString(
+                "name-tag-placeholder", "{PLAYER}");
+        String defaultName = plugin.getConfig().getString("name-tag-default",
+                "Guest");
+        nameTags.set(new NameTags(placeholder, defaultName, plugin.getServer()
+                .getMotd()));
+    }
+    
+    /**
+     * Create the ping limiter from the configured budgets.
+     */
+    private void loadPingLimiter() {
+        FileConfiguration config = plugin.getConfig();
+        pingLimiter = new PingLimiter(config.getInt("ping-limit.slots", 4096),
+                config.getInt("ping-limit.per-address.rate", 2),
+                config.getInt("ping-limit.per-address.burst", 10),
+                config.getInt("ping-limit.global.rate", 200),
+                config.getInt("ping-limit.global.burst", 1000));
+    }
+    
+    /**
+     * Create the skin fetcher from the configured list of sources. Sources
+     * beginning with "http:" or "https:" are downloaded, and any others are
+     * read as local files. A configuration from before skin-sources existed
+     * still has its skin-url used as the only source, with a warning given
+     * once.
+     */
+    private void loadSkinFetcher() {
+        FileConfiguration config = plugin.getConfig();
+        int timeout = config.getInt("skin-timeout", 5000);
+        List<String> sources = config.getStringList("skin-sources");
+        if (!config.isSet("skin-sources") && config.isSet("skin-url")) {
+            sources = Collections.singletonList(config.getString("skin-url"));
+            if (!skinUrlWarned) {
+                skinUrlWarned = true;
+                plugin.fancyLog(Level.WARNING, "skin-url is deprecated, "
+                        + "replace it with a skin-sources list in config.yml");
+            }
+        }
+        List<SkinProvider> providers = new ArrayList<SkinProvider>();
+        for (String source : sources) {
+            if (source.startsWith("http:") || source.startsWith("https:")) {
+                providers.add(new UrlSkinProvider(source, timeout));
+            } else {
+                providers.add(new DirectorySkinProvider(source));
+            }
+        }
+        skinFetcher = new SkinFetcher(plugin, providers,
+                config.getInt("skin-breaker.failures", 3),
+                1000L * config.getInt("skin-breaker.cooldown", 60),
+                1000L * config.getInt("skin-retry.min", 60),
+                1000L * config.getInt("skin-retry.max", 3600));
     }
     
     /**
+     * Record which skin a player has. The skin's modification time is renewed
+     * first, so that a sweep by another server does not delete an old skin,
+     * or its icon, before the new index entry is published.
+     * 
      * @param playerId
-     *            Player
+     *            Name of the player
+     * @param hash
+     *            Hash of the player's skin
+     */
+    public void referenceSkin(String playerId, String hash) {
+        new File(skinFolder, hash + ".png").setLastModified(System
+                .currentTimeMillis());
+        skinIndex.put(playerId, hash);
+    }
+    
+    /**
+     * Reload only the cached values/images affected by changed settings. Name
+     * tag changes are cheap, while icon layout changes invalidate every
+     * personalized icon, so those are re-rendered in the background.
+     * 
+     * @param changed
+     *            Paths of the settings that changed
+     */
+    public void reload(Set<String> changed) {
+        boolean nameTags = false;
+        boolean skinSources = false;
+        boolean iconLayout = false;
+        boolean pingLimit = false;
+        boolean iconModeChanged = false;
+        for (String path : changed) {
+            if (path.startsWith("name-tag-")) {
+                nameTags = true;
+            } else if (path.startsWith("ping-limit")) {
+                pingLimit = true;
+            } else if (path.equals("icon-mode")) {
+                iconModeChanged = true;
+            } else if (path.startsWith("skin-sources")
+                    || path.startsWith("skin-timeout")
+                    || path.startsWith("skin-breaker")
+                    || path.startsWith("skin-retry")) {
+                skinSources = true;
+            } else if (path.equals("base-icon")
+                    || path.startsWith("skin-face-location")
+                    || path.startsWith("skin-hat-location")
+                    || path.startsWith("head-transform")) {
+                iconLayout = true;
+            }
+        }
+        if (nameTags) {
+            loadNameTags();
+        }
+        if (skinSources) {
+            loadSkinFetcher();
+        }
+        if (pingLimit) {
+            loadPingLimiter();
+        }
+        if (iconModeChanged) {
+            loadIconMode();
+        }
+        if (iconLayout) {
+            loadBaseIcon();
+            IconFactory.regenerateIcons(plugin);
+        }
+    }
+    
+    /**
+     * Store an already encoded image unless a file for the hash exists.
+     * 
+     * @param hash
+     *            Hash of the skin
+     * @param data
+     *            PNG data, which should already have been validated
+     * @param icon
+     *            Whether the data is a personalized icon rather than a skin
+     * @return Whether the image was saved
+     */
+    public boolean saveEncoded(String hash, byte[] data, boolean icon) {
+        File file = icon ? getIconFile(hash) : getSkinFile(hash);
+        return !file.isFile() && writeFile(data, file);
+    }
+    
+    /**
+     * @param hash
+     *            Hash of the skin the icon was rendered from
      * @param icon
      *            Icon image to save
      * @return Whether the image was saved
      */
-    public boolean savePersonalizedIcon(String playerId, BufferedImage icon) {
-        File iconFile = new File(iconFolder, playerId + ".png");
+    public boolean savePersonalizedIcon(String hash, BufferedImage icon) {
         try {
-            ImageIO.write(icon, "PNG", iconFile);
-            return true;
+            return writeFile(iconEncoder.encode(icon), new File(iconFolder,
+                    hash + ".png"));
         } catch (IOException e) {
             return false;
         }
     }
     
     /**
+     * Record a player's skin, storing the image unless an identical skin is
+     * already stored. A stored skin that a sweep deleted before the player
+     * referred to it is stored again.
+     * 
      * @param playerId
      *            Name associated with the skin
+     * @param hash
+     *            Hash of the skin
      * @param skin
      *            The player skin image
+     * @return Whether the skin was saved
+     */
+    public boolean savePlayerSkin(String playerId, String hash,
+            BufferedImage skin) {
+        File skinFile = new File(skinFolder, hash + ".png");
+        if (!skinFile.isFile() && !saveSkin(skinFile, skin)) {
+            return false;
+        }
+        referenceSkin(playerId, hash);
+        return skinFile.isFile() || saveSkin(skinFile, skin);
+    }
+    
+    /**
+     * Delete the skins and icons that no player refers to any more, such as
+     * after players changed their skins.
+     * 
+     * @return Number of distinct skins deleted
+     * @throws IOException
+     */
+    public int sweepUnreferenced() throws IOException {
+        Set<String> removed = skinIndex.sweep(SWEEP_AGE, skinFolder,
+                iconFolder);
+        for (String hash : removed) {
+            iconCache.invalidate(hash);
+        }
+        return removed.size();
+    }
+    
+    /**
+     * @param skinFile
+     *            File to save to
+     * @param skin
+     *            The skin image
      * @return Whether the image was saved
      */
-    public boolean savePlayerSkin(String playerId, BufferedImage skin) {
-        File skinFile = new File(skinFolder, playerId + ".png");
+    private boolean saveSkin(File skinFile, BufferedImage skin) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            ImageIO.write(skin, "PNG", skinFile);
-            return true;
+            ImageIO.write(skin, "PNG", out);
         } catch (IOException e) {
             return false;
         }
+        return writeFile(out.toByteArray(), skinFile);
+    }
+    
+    /**
+     * Write a file by way of a uniquely named temporary file, so that other
+     * servers sharing the storage folder never read a partially written image
+     * and concurrent writers of the same file never share a temporary file.
+     * Files are named by the hash of their content, so if the rename fails
+     * because the file already exists, another writer has already stored it.
+     * 
+     * @param data
+     *            Contents to write
+     * @param file
+     *            Destination file
+     * @return Whether the file was saved
+     */
+    private boolean writeFile(byte[] data, File file) {
+        File temp = null;
+        try {
+            temp = AtomicFile.createTemp(file);
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            if (temp != null) {
+                temp.delete();
+            }
+            return false;
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return file.isFile();
+        }
+        return true;
     }
     
 }
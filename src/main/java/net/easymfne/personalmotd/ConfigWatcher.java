@@ -0,0 +1,122 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * Background thread that watches config.yml and reloads the plugin when the
+ * file is changed on disk.
+ */
+public class ConfigWatcher implements Runnable {
+    
+    /* Milliseconds to wait for an editor to finish writing */
+    private static final long SETTLE_TIME = 500L;
+    
+    private PersonalMotd plugin;
+    private WatchService watchService;
+    private Thread thread;
+    
+    /**
+     * Instantiate by starting a thread to watch the plugin's data folder.
+     * 
+     * @param plugin
+     *            Reference to PersonalMotd plugin instance
+     * @throws IOException
+     *             If the folder cannot be watched
+     */
+    public ConfigWatcher(PersonalMotd plugin) throws IOException {
+        this.plugin = plugin;
+        watchService = FileSystems.getDefault().newWatchService();
+        plugin.getDataFolder()
+                .toPath()
+                .register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+        thread = new Thread(this, "PersonalMotd config watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Stop watching the configuration file.
+     */
+    public void close() {
+        thread.interrupt();
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            /* Nothing left to release */
+        }
+    }
+    
+    /**
+     * @param key
+     *            Signalled watch key
+     * @return Whether any of the key's events concern config.yml
+     */
+    private boolean isConfigChange(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (context instanceof Path
+                    && ((Path) context).toString().equals("config.yml")) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+    
+    /**
+     * Wait for changes to config.yml, and once writing has settled schedule a
+     * reload on the main thread.
+     */
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                if (!isConfigChange(watchService.take())) {
+                    continue;
+                }
+                Thread.sleep(SETTLE_TIME);
+                WatchKey key;
+                while ((key = watchService.poll()) != null) {
+                    isConfigChange(key);
+                }
+                new BukkitRunnable() {
+                    @Override
+                    public void run() {
+                        plugin.reload();
+                    }
+                }.runTask(plugin);
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (ClosedWatchServiceException e) {
+            return;
+        }
+    }
+    
+}
@@ -0,0 +1,53 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Skin provider that reads skins from local files, using a path template in
+ * which "{PLAYERNAME}" is replaced with the player's name.
+ */
+public class DirectorySkinProvider implements SkinProvider {
+    
+    private String template;
+    
+    /**
+     * @param template
+     *            Path template, relative to server root
+     */
+    public DirectorySkinProvider(String template) {
+        this.template = template;
+    }
+    
+    @Override
+    public String getName() {
+        return template;
+    }
+    
+    @Override
+    public BufferedImage getSkin(String playerId) throws IOException {
+        File file = new File(template.replace("{PLAYERNAME}", playerId));
+        if (!file.isFile()) {
+            return null;
+        }
+        return ImageIO.read(file);
+    }
+    
+}
@@ -15,7 +15,7 @@
 package net.easymfne.personalmotd;
 
 import java.util.Iterator;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 import net.easymfne.factionsdb.PlayerDeathBanEvent;
 
@@ -26,6 +26,8 @@ import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
 import org.bukkit.event.entity.PlayerDeathEvent;
 import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.event.server.ServerListPingEvent;
 import org.bukkit.util.CachedServerIcon;
 
@@ -37,10 +39,10 @@ import org.bukkit.util.CachedServerIcon;
 public class EventListener implements Listener {
     
     private PersonalMotd plugin;
-    private Random random;
     
-    private String latestDeath;
-    private String latestDeathBan;
+    /* Written on the main thread, read by asynchronous pings */
+    private volatile String latestDeath;
+    private volatile String latestDeathBan;
     
     /**
      * Instantiate by getting a reference to the plugin instance and registering
@@ -51,7 +53,6 @@ public class EventListener implements Listener {
      */
     public EventListener(PersonalMotd plugin) {
         this.plugin = plugin;
-        random = new Random();
         plugin.getServer().getPluginManager().registerEvents(this, plugin);
     }
     
@@ -59,38 +60,61 @@ public class EventListener implements Listener {
      * Unregister all registered EventHandlers, preventing further reactions.
      */
     public void close() {
-        plugin = null;
-        random = null;
         HandlerList.unregisterAll(this);
     }
     
     /**
      * @param event
-     * @return Random player name from the event's iterator
+     * @return Random player name from the event's iterator, or null if there
+     *         are no players
      */
     private String getRandom(ServerListPingEvent event) {
+        int count = event.getNumPlayers();
+        if (count < 1) {
+            return null;
+        }
         Iterator<Player> iter = event.iterator();
-        String player = null;
-        for (int i = 0; i <= random.nextInt(event.getNumPlayers()); i++) {
-            player = iter.next().getName();
+        Player player = null;
+        for (int i = ThreadLocalRandom.current().nextInt(count); i >= 0
+                && iter.hasNext(); i--) {
+            player = iter.next();
         }
-        return player;
+        return player == null ? null : player.getName();
     }
     
     /**
      * Detect pre-login events for mapping Address->Name pairs and generation of
-     * personalized icons.
+     * personalized icons, unless the skin was refreshed recently.
      * 
      * @param event
      */
     @EventHandler
     public void onAsyncPlayerPreLogin(AsyncPlayerPreLoginEvent event) {
-        if (!plugin.getAddressMap().containsKey(event.getAddress())
-                || plugin.getAddressMap().get(event.getAddress()) != event
-                        .getName()) {
-            plugin.getAddressMap().put(event.getAddress(), event.getName());
+        plugin.getAddressStore().put(event.getAddress(), event.getName());
+        plugin.getSkinRefresher().seen(event.getName());
+        if (!plugin.getSkinRefresher().isFresh(event.getName())) {
+            IconFactory.generateIcon(plugin, event.getName());
         }
-        IconFactory.generateIcon(plugin, event.getName());
+    }
+    
+    /**
+     * Keep the skins of online players fresh.
+     * 
+     * @param event
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        plugin.getSkinRefresher().joined(event.getPlayer().getName());
+    }
+    
+    /**
+     * Keep the skins of departed players fresh for a while longer.
+     * 
+     * @param event
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        plugin.getSkinRefresher().left(event.getPlayer().getName());
     }
     
     /**
@@ -114,21 +138,23 @@ public class EventListener implements Listener {
     }
     
     /**
-     * Modify the server icon and MOTD text.
+     * Modify the server icon and MOTD text. Sources pinging faster than the
+     * configured limits are given the precomputed default response instead,
+     * built from the server MOTD, so any changes other plugins made to the
+     * MOTD of such a ping are replaced.
      * 
      * @param event
      */
     @EventHandler(priority = EventPriority.HIGH)
     public void onServerListPing(ServerListPingEvent event) {
-        String playerId = plugin.getAddressMap().get(event.getAddress());
-        if (playerId != null) {
-            event.setMotd(event.getMotd().replace(
-                    plugin.getConf().getNameTagPlaceholder(), playerId));
-        } else {
-            event.setMotd(event.getMotd().replace(
-                    plugin.getConf().getNameTagPlaceholder(),
-                    plugin.getConf().getNameTagDefault()));
+        if (!plugin.getConf().getPingLimiter().tryAcquire(event.getAddress())) {
+            event.setMotd(plugin.getConf().getDefaultMotd());
+            event.setServerIcon(plugin.getConf().getDefaultIcon());
+            return;
         }
+        String playerId = plugin.getAddressStore().get(event.getAddress());
+        event.setMotd(plugin.getConf().personalizeMotd(event.getMotd(),
+                playerId));
         CachedServerIcon icon = null;
         switch (plugin.getConf().getIconMode()) {
         case DEATH:
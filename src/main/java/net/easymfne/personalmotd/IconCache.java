@@ -0,0 +1,425 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.util.CachedServerIcon;
+
+/**
+ * In-memory cache of decoded personalized icons, so that server list pings do
+ * not have to read and decode PNG files from disk. Icons are keyed by the hash
+ * of the skin they were rendered from, so each distinct icon is held once.
+ * The cache is limited by the estimated memory its icons take up, and the least
+ * recently used icons are evicted first when it is full. When each icon was
+ * last used is tracked separately from its file, in a file of this
+ * server's own, so that the icon files only change when an icon is rendered.
+ */
+public class IconCache {
+    
+    /**
+     * Cached icon along with the modification time of the file it came from,
+     * and when it was last looked up. An entry with a null icon records that
+     * no icon file exists.
+     */
+    private static class CacheEntry {
+        private final CachedServerIcon icon;
+        private final long lastModified;
+        private final long cost;
+        private volatile long lastAccess;
+        
+        public CacheEntry(CachedServerIcon icon, long lastModified, long cost,
+                long lastAccess) {
+            this.icon = icon;
+            this.lastModified = lastModified;
+            this.cost = cost;
+            this.lastAccess = lastAccess;
+        }
+    }
+    
+    /* Estimated bytes held for each entry besides its icon data */
+    private static final long ENTRY_OVERHEAD = 128L;
+    
+    private PersonalMotd plugin;
+    private File folder;
+    private File recencyFile;
+    private long budget;
+    
+    private final ConcurrentHashMap<String, CacheEntry> entries;
+    private final ConcurrentHashMap<String, Long> lastUsed;
+    
+    private volatile boolean recencyChanged = false;
+    
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    
+    /**
+     * Instantiate the cache for the icons stored in a folder, and read when
+     * each icon was last used.
+     * 
+     * @param plugin
+     *            Reference to PersonalMotd plugin instance
+     * @param folder
+     *            Folder containing the personalized icons
+     * @param recencyFile
+     *            File recording when each icon was last used on this server
+     * @param budget
+     *            Maximum estimated bytes of icons held in memory
+     */
+    public IconCache(PersonalMotd plugin, File folder, File recencyFile,
+            long budget) {
+        this.plugin = plugin;
+        this.folder = folder;
+        this.recencyFile = recencyFile;
+        this.budget = Math.max(0L, budget);
+        entries = new ConcurrentHashMap<String, CacheEntry>();
+        lastUsed = new ConcurrentHashMap<String, Long>();
+        if (recencyFile.isFile()) {
+            YamlConfiguration recency = YamlConfiguration
+                    .loadConfiguration(recencyFile);
+            for (String hash : recency.getKeys(false)) {
+                long time = recency.getLong(hash, 0L);
+                if (SkinIndex.isHash(hash) && time > 0L) {
+                    lastUsed.put(hash, time);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @param icon
+     *            Icon file, or null if there is none
+     * @return Estimated bytes of memory held by the icon once loaded, which
+     *         keeps it as Base64 text of its PNG data
+     */
+    private static long estimateCost(File icon) {
+        long length = icon == null ? 0L : icon.length();
+        return ENTRY_OVERHEAD + 2L * (4L * ((length + 2L) / 3L) + 22L);
+    }
+    
+    /**
+     * Remove the least recently used entries until there is room for another
+     * of the given cost. Entries looked up while this runs are kept.
+     * 
+     * @param cost
+     *            Estimated bytes of the entry to make room for
+     */
+    private void evictFor(long cost) {
+        if (used.get() + cost <= budget) {
+            return;
+        }
+        final Map<String, Long> accessed = new HashMap<String, Long>();
+        for (Entry<String, CacheEntry> entry : entries.entrySet()) {
+            accessed.put(entry.getKey(), entry.getValue().lastAccess);
+        }
+        List<String> hashes = new ArrayList<String>(accessed.keySet());
+        Collections.sort(hashes, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return accessed.get(a).compareTo(accessed.get(b));
+            }
+        });
+        for (String hash : hashes) {
+            if (used.get() + cost <= budget) {
+                break;
+            }
+            CacheEntry entry = entries.get(hash);
+            if (entry != null && entry.lastAccess == accessed.get(hash)
+                    && entries.remove(hash, entry)) {
+                used.addAndGet(-entry.cost);
+            }
+        }
+    }
+    
+    /**
+     * @param hash
+     *            Hash of the icon's skin
+     * @return Personalized icon, or null if none exists
+     */
+    public CachedServerIcon get(String hash) {
+        CacheEntry entry = entries.get(hash);
+        if (entry != null) {
+            hits.incrementAndGet();
+            entry.lastAccess = System.currentTimeMillis();
+            return entry.icon;
+        }
+        misses.incrementAndGet();
+        return load(hash, true).icon;
+    }
+    
+    /**
+     * @return Number of lookups answered from memory
+     */
+    public long getHits() {
+        return hits.get();
+    }
+    
+    /**
+     * @return Estimated bytes of memory held by the cached icons
+     */
+    public long getMemoryUsed() {
+        return used.get();
+    }
+    
+    /**
+     * @return Number of lookups that had to go to disk
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+    
+    /**
+     * @param hash
+     *            Hash of the icon's skin
+     * @return File holding the personalized icon
+     */
+    private File getFile(String hash) {
+        return new File(folder, hash + ".png");
+    }
+    
+    /**
+     * Drop an icon from memory, so it is re-read on next use.
+     * 
+     * @param hash
+     *            Hash of the icon's skin
+     */
+    public void invalidate(String hash) {
+        CacheEntry entry = entries.remove(hash);
+        if (entry != null) {
+            used.addAndGet(-entry.cost);
+        }
+    }
+    
+    /**
+     * Read and decode an icon from disk and store it in memory.
+     * 
+     * @param hash
+     *            Hash of the icon's skin
+     * @param evict
+     *            Whether to make room by evicting other entries if the cache
+     *            is full, rather than not storing the icon. Icons loaded
+     *            without evicting, ahead of being looked up, count as last
+     *            used when this server last used them.
+     * @return The new cache entry
+     */
+    private CacheEntry load(String hash, boolean evict) {
+        File file = getFile(hash);
+        long lastModified = file.lastModified();
+        CachedServerIcon icon = null;
+        if (lastModified != 0L) {
+            try {
+                icon = plugin.getServer().loadServerIcon(file);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        long cost = estimateCost(icon == null ? null : file);
+        Long recency = lastUsed.get(hash);
+        CacheEntry entry = new CacheEntry(icon, lastModified, cost,
+                evict ? System.currentTimeMillis() : recency == null ? 0L
+                        : recency);
+        if (cost > budget) {
+            return entry;
+        }
+        CacheEntry previous = entries.get(hash);
+        long needed = cost - (previous == null ? 0L : previous.cost);
+        if (used.get() + needed > budget) {
+            if (!evict) {
+                return entry;
+            }
+            evictFor(needed);
+        }
+        previous = entries.put(hash, entry);
+        used.addAndGet(cost - (previous == null ? 0L : previous.cost));
+        return entry;
+    }
+    
+    /**
+     * Re-read an icon from disk if it is held in memory, so that a
+     * regenerated icon replaces the old one without a cache miss.
+     * 
+     * @param hash
+     *            Hash of the icon's skin
+     */
+    public void refresh(String hash) {
+        if (entries.containsKey(hash)) {
+            load(hash, true);
+        }
+    }
+    
+    /**
+     * Evict any icons whose file has changed since it was read, such as when
+     * another server sharing the storage folder regenerated it.
+     */
+    public void revalidate() {
+        for (Entry<String, CacheEntry> entry : entries.entrySet()) {
+            long lastModified = getFile(entry.getKey()).lastModified();
+            if (lastModified != entry.getValue().lastModified
+                    && entries.remove(entry.getKey(), entry.getValue())) {
+                used.addAndGet(-entry.getValue().cost);
+            }
+        }
+    }
+    
+    /**
+     * Write when each icon that still exists was last used, if any icon has
+     * been used since last written, so that the next warm-up loads the most
+     * recently used icons first. Synchronized, as both the sync task and
+     * disabling the plugin save it.
+     * 
+     * @throws IOException
+     */
+    public synchronized void saveRecency() throws IOException {
+        if (!recencyChanged) {
+            return;
+        }
+        recencyChanged = false;
+        YamlConfiguration recency = new YamlConfiguration();
+        for (Entry<String, Long> entry : lastUsed.entrySet()) {
+            if (getFile(entry.getKey()).isFile()) {
+                recency.set(entry.getKey(), entry.getValue());
+            } else {
+                lastUsed.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        try {
+            AtomicFile.save(recency, recencyFile);
+        } catch (IOException e) {
+            recencyChanged = true;
+            throw e;
+        }
+    }
+    
+    /**
+     * @return Number of icons held in memory
+     */
+    public int size() {
+        return entries.size();
+    }
+    
+    /**
+     * Mark an icon as recently used, which moves it forward in the
+     * warm-up order.
+     * 
+     * @param hash
+     *            Hash of the icon's skin
+     */
+    public void touch(String hash) {
+        lastUsed.put(hash, System.currentTimeMillis());
+        recencyChanged = true;
+    }
+    
+    /**
+     * Load the most recently used icons in parallel, until the memory budget
+     * of the cache is reached, giving up on whatever remains once the time
+     * limit is reached. Progress is logged at every quarter. Blocks until
+     * finished, so should be run asynchronously.
+     * 
+     * @param timeLimit
+     *            Maximum milliseconds to spend loading
+     * @return Number of icons loaded
+     */
+    public int warmUp(long timeLimit) {
+        File[] files = folder.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                String name = file.getName();
+                return file.isFile() && name.endsWith(".png")
+                        && SkinIndex.isHash(name.substring(0,
+                                name.length() - 4));
+            }
+        });
+        if (files == null || budget == 0L) {
+            return 0;
+        }
+        final Map<String, Long> recency = new HashMap<String, Long>();
+        List<String> hashes = new ArrayList<String>();
+        long estimate = 0L;
+        for (File file : files) {
+            String name = file.getName();
+            String hash = name.substring(0, name.length() - 4);
+            Long time = lastUsed.get(hash);
+            recency.put(hash, time == null ? file.lastModified() : time);
+            hashes.add(hash);
+        }
+        Collections.sort(hashes, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return recency.get(b).compareTo(recency.get(a));
+            }
+        });
+        int count = 0;
+        for (String hash : hashes) {
+            estimate += estimateCost(getFile(hash));
+            if (estimate > budget) {
+                break;
+            }
+            count++;
+        }
+        final int total = count;
+        final int step = Math.max(1, total / 4);
+        final AtomicInteger loaded = new AtomicInteger();
+        final AtomicInteger done = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime
+                .getRuntime().availableProcessors());
+        for (final String hash : hashes.subList(0, total)) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!entries.containsKey(hash)
+                            && load(hash, false).icon != null) {
+                        loaded.incrementAndGet();
+                    }
+                    int progress = done.incrementAndGet();
+                    if (progress % step == 0 && progress < total) {
+                        plugin.getLogQueue().log(Level.INFO,
+                                "icon cache warm-up progress",
+                                "Icon cache warm-up: " + progress + "/"
+                                        + total + " icons");
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeLimit, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        return loaded.get();
+    }
+    
+}
@@ -0,0 +1,208 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodes icons as the smallest PNG that reproduces them exactly. Icons with
+ * no more than 256 colors are written with a palette, alpha is dropped when
+ * every pixel is opaque, and the strongest available compression is used.
+ * The server decodes the icon file and encodes it again with default settings
+ * before sending it, so only the color reductions carry over to the size sent
+ * on each ping, which is tracked separately from the size of the file.
+ */
+public class IconEncoder {
+    
+    private final AtomicLong icons = new AtomicLong();
+    private final AtomicLong plainBytes = new AtomicLong();
+    private final AtomicLong encodedBytes = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    
+    /**
+     * @param argb
+     *            Pixels of the image
+     * @param width
+     *            Width of the image
+     * @param height
+     *            Height of the image
+     * @param opaque
+     *            Whether every pixel is fully opaque
+     * @return Palette-based copy of the image, or null if it has more than 256
+     *         colors
+     */
+    private static BufferedImage toIndexed(int[] argb, int width, int height,
+            boolean opaque) {
+        Map<Integer, Integer> palette = new HashMap<Integer, Integer>();
+        for (int pixel : argb) {
+            if (!palette.containsKey(pixel)) {
+                if (palette.size() == 256) {
+                    return null;
+                }
+                palette.put(pixel, palette.size());
+            }
+        }
+        int size = palette.size();
+        int bits = size <= 2 ? 1 : size <= 4 ? 2 : size <= 16 ? 4 : 8;
+        byte[] r = new byte[size];
+        byte[] g = new byte[size];
+        byte[] b = new byte[size];
+        byte[] a = new byte[size];
+        for (Entry<Integer, Integer> entry : palette.entrySet()) {
+            int color = entry.getKey();
+            int index = entry.getValue();
+            a[index] = (byte) (color >>> 24);
+            r[index] = (byte) (color >>> 16);
+            g[index] = (byte) (color >>> 8);
+            b[index] = (byte) color;
+        }
+        IndexColorModel model = opaque ? new IndexColorModel(bits, size, r, g,
+                b) : new IndexColorModel(bits, size, r, g, b, a);
+        BufferedImage indexed = new BufferedImage(width, height,
+                bits == 8 ? BufferedImage.TYPE_BYTE_INDEXED
+                        : BufferedImage.TYPE_BYTE_BINARY, model);
+        WritableRaster raster = indexed.getRaster();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                raster.setSample(x, y, 0, palette.get(argb[y * width + x]));
+            }
+        }
+        return indexed;
+    }
+    
+    /**
+     * @param image
+     *            Image to write
+     * @param strongest
+     *            Whether to request the strongest compression
+     * @return PNG data
+     * @throws IOException
+     */
+    private static byte[] write(BufferedImage image, boolean strongest)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        ImageOutputStream stream = ImageIO.createImageOutputStream(out);
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (strongest && param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(0.0f);
+            }
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            stream.close();
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+    
+    /**
+     * Encode an icon, keeping track of how much smaller it is than the default
+     * encoding, both as written and as sent by the server.
+     * 
+     * @param icon
+     *            Icon image
+     * @return Smallest PNG data found for the icon
+     * @throws IOException
+     */
+    public byte[] encode(BufferedImage icon) throws IOException {
+        int width = icon.getWidth();
+        int height = icon.getHeight();
+        int[] argb = icon.getRGB(0, 0, width, height, null, 0, width);
+        boolean opaque = true;
+        for (int pixel : argb) {
+            if (pixel >>> 24 != 0xFF) {
+                opaque = false;
+                break;
+            }
+        }
+        byte[] plain = write(icon, false);
+        byte[] best = write(icon, true);
+        BufferedImage reduced = toIndexed(argb, width, height, opaque);
+        if (reduced == null && opaque) {
+            reduced = new BufferedImage(width, height,
+                    BufferedImage.TYPE_INT_RGB);
+            reduced.setRGB(0, 0, width, height, argb, 0, width);
+        }
+        if (reduced != null) {
+            byte[] candidate = write(reduced, true);
+            if (candidate.length < best.length) {
+                best = candidate;
+            }
+        }
+        if (plain.length < best.length) {
+            best = plain;
+        }
+        byte[] sent = write(ImageIO.read(new ByteArrayInputStream(best)),
+                false);
+        icons.incrementAndGet();
+        plainBytes.addAndGet(plain.length);
+        encodedBytes.addAndGet(best.length);
+        sentBytes.addAndGet(sent.length);
+        return best;
+    }
+    
+    /**
+     * @return Average size in bytes of the encoded icons, or 0 if none
+     */
+    public long getAverageEncodedBytes() {
+        long count = icons.get();
+        return count == 0 ? 0 : encodedBytes.get() / count;
+    }
+    
+    /**
+     * @return Average size in bytes the icons would have had with the default
+     *         encoding, or 0 if none
+     */
+    public long getAveragePlainBytes() {
+        long count = icons.get();
+        return count == 0 ? 0 : plainBytes.get() / count;
+    }
+    
+    /**
+     * @return Average size in bytes of the icons as sent by the server, which
+     *         encodes the decoded icon files again with default settings, or
+     *         0 if none
+     */
+    public long getAverageSentBytes() {
+        long count = icons.get();
+        return count == 0 ? 0 : sentBytes.get() / count;
+    }
+    
+    /**
+     * @return Number of icons encoded
+     */
+    public long getCount() {
+        return icons.get();
+    }
+    
+}
@@ -18,51 +18,51 @@ import java.awt.Graphics;
 import java.awt.geom.AffineTransform;
 import java.awt.image.AffineTransformOp;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 
 import org.bukkit.scheduler.BukkitRunnable;
 
 public class IconFactory extends BukkitRunnable {
     
     /**
-     * Runnable class for scheduling logger actions from an asynchronous thread.
+     * Asynchronous task re-rendering the personalized icon of every distinct
+     * cached skin, such as after the icon layout has been reconfigured. Stops
+     * early if a newer regeneration is started.
      */
-    private class RunnableLogger extends BukkitRunnable {
+    private static class Regenerator extends BukkitRunnable {
         private PersonalMotd plugin;
-        private String message;
+        private int generation;
         
-        public RunnableLogger(PersonalMotd plugin, String message) {
+        public Regenerator(PersonalMotd plugin, int generation) {
             this.plugin = plugin;
-            this.message = message;
+            this.generation = generation;
         }
         
         @Override
         public void run() {
-            plugin.fancyLog(message);
-        }
-    }
-    
-    /**
-     * @param img1
-     * @param img2
-     * @return Whether the two images are different
-     */
-    private static boolean different(BufferedImage img1, BufferedImage img2) {
-        if (img1 == null || img2 == null
-                || img1.getHeight() != img2.getHeight()
-                || img1.getWidth() != img2.getWidth()) {
-            return true;
-        }
-        for (int x = 0; x < img1.getWidth(); x++) {
-            for (int y = 0; y < img1.getHeight(); y++) {
-                if (img1.getRGB(x, y) != img2.getRGB(x, y)) {
-                    return true;
+            int count = 0;
+            for (String hash : plugin.getConf().getSkinHashes()) {
+                if (generation != regeneration.get() || !plugin.isEnabled()) {
+                    return;
+                }
+                BufferedImage skin = plugin.getConf().getCachedSkin(hash);
+                if (skin != null) {
+                    plugin.getConf().savePersonalizedIcon(hash,
+                            render(plugin, skin));
+                    plugin.getConf().getIconCache().refresh(hash);
+                    count++;
                 }
             }
+            plugin.getLogQueue().log(Level.INFO,
+                    "Regenerated " + count + " icons");
         }
-        return false;
-        
     }
     
+    /* Incremented to cancel any regeneration in progress */
+    private static final AtomicInteger regeneration = new AtomicInteger();
+    
     /**
      * Create a new asynchronous task for generating a personalized icon.
      * 
@@ -70,13 +70,43 @@ public class IconFactory extends BukkitRunnable {
      *            Player to generate icon for
      */
     public static void generateIcon(PersonalMotd plugin, String playerId) {
-        plugin.fancyLog("Scheduling icon creation task for " + playerId);
+        plugin.getLogQueue().log(Level.FINE, "icon creation tasks scheduled",
+                "Scheduling icon creation task for " + playerId);
         plugin.getServer()
                 .getScheduler()
                 .runTaskAsynchronously(plugin,
                         new IconFactory(plugin, playerId));
     }
     
+    /**
+     * Create a new asynchronous task for re-rendering all personalized icons
+     * from cached skins, replacing any such task already running.
+     * 
+     * @param plugin
+     *            Plugin reference
+     */
+    public static void regenerateIcons(PersonalMotd plugin) {
+        plugin.fancyLog("Scheduling regeneration of all icons");
+        int generation = regeneration.incrementAndGet();
+        plugin.getServer()
+                .getScheduler()
+                .runTaskAsynchronously(plugin,
+                        new Regenerator(plugin, generation));
+    }
+    
+    /**
+     * Check a player's skin and regenerate their icon if necessary, in the
+     * current thread.
+     * 
+     * @param plugin
+     *            Plugin reference
+     * @param playerId
+     *            Player to refresh icon for
+     */
+    public static void refreshIcon(PersonalMotd plugin, String playerId) {
+        new IconFactory(plugin, playerId).run();
+    }
+    
     /**
      * @param plugin
      *            Plugin reference
@@ -140,6 +170,19 @@ public class IconFactory extends BukkitRunnable {
         return icon;
     }
     
+    /**
+     * @param plugin
+     *            Plugin reference
+     * @param skin
+     *            Skin image
+     * @return Personalized icon for the skin
+     */
+    private static BufferedImage render(PersonalMotd plugin, BufferedImage skin) {
+        BufferedImage head = getHead(getFace(plugin, skin),
+                getHat(plugin, skin));
+        return overlayHead(plugin, plugin.getConf().getDefaultImage(), head);
+    }
+    
     /**
      * @param image
      *            Image to manipulate
@@ -176,37 +219,48 @@ public class IconFactory extends BukkitRunnable {
     
     /**
      * Asynchronously runnable task for checking player skins and generation of
-     * new personalized icon if necessary.
+     * new personalized icon if necessary. Players whose skin is identical to
+     * one already rendered share its icon, which is checked for again once
+     * the player refers to the skin, as a sweep may have deleted it first.
      */
     @Override
     public void run() {
-        BufferedImage cachedSkin = plugin.getConf().getCachedPlayerSkin(
-                playerId);
-        BufferedImage fetchedSkin = plugin.getConf().getFetchedPlayerSkin(
-                playerId);
+        if (!plugin.getConf().getSkinFetcher().isDue(playerId)) {
+            return;
+        }
+        BufferedImage fetchedSkin;
+        try {
+            fetchedSkin = plugin.getConf().getFetchedPlayerSkin(playerId);
+        } catch (IOException e) {
+            plugin.getLogQueue().log(Level.FINE, "skin fetches failed",
+                    "Skin sources unavailable for " + playerId + " ("
+                            + e.getMessage() + ")");
+            return;
+        }
         if (fetchedSkin == null) {
-            plugin.getServer()
-                    .getScheduler()
-                    .runTask(
-                            plugin,
-                            new RunnableLogger(plugin, "No skin online for "
-                                    + playerId));
+            plugin.getLogQueue().log(Level.INFO, "players without skins",
+                    "No skin online for " + playerId);
             return;
         }
-        if (cachedSkin == null || different(cachedSkin, fetchedSkin)) {
-            plugin.getConf().savePlayerSkin(playerId, fetchedSkin);
-            BufferedImage head = getHead(getFace(plugin, fetchedSkin),
-                    getHat(plugin, fetchedSkin));
-            BufferedImage icon = overlayHead(plugin, plugin.getConf()
-                    .getDefaultImage(), head);
-            plugin.getConf().savePersonalizedIcon(playerId, icon);
-            plugin.getServer()
-                    .getScheduler()
-                    .runTask(
-                            plugin,
-                            new RunnableLogger(plugin, "Icon generated for "
-                                    + playerId));
+        plugin.getSkinRefresher().revalidated(playerId);
+        String hash = SkinIndex.hashOf(fetchedSkin);
+        boolean rendered = plugin.getConf().hasPersonalizedIcon(hash);
+        plugin.getConf().getIconCache().touch(hash);
+        if (hash.equals(plugin.getConf().getSkinIndex().get(playerId))
+                && rendered) {
+            return;
+        }
+        plugin.getConf().savePlayerSkin(playerId, hash, fetchedSkin);
+        if (rendered && plugin.getConf().hasPersonalizedIcon(hash)) {
+            plugin.getLogQueue().log(Level.FINE, "icons shared",
+                    "Icon shared with an identical skin for " + playerId);
+            return;
         }
+        plugin.getConf().savePersonalizedIcon(hash,
+                render(plugin, fetchedSkin));
+        plugin.getConf().getIconCache().refresh(hash);
+        plugin.getLogQueue().log(Level.INFO, "icons generated",
+                "Icon generated for " + playerId);
     }
     
 }
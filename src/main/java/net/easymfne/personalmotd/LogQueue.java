@@ -0,0 +1,208 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+/**
+ * Lock-free queue of log messages, written to the console by a single
+ * background thread so that logging never costs main-thread or login time.
+ * Unless verbose, repeated messages of the same kind are rate-limited: the
+ * first few in each interval are shown and the rest are summarized by count.
+ */
+public class LogQueue implements Runnable {
+    
+    /**
+     * A queued log message.
+     */
+    private static class Message {
+        private final Level level;
+        private final String summary;
+        private final String text;
+        
+        public Message(Level level, String summary, String text) {
+            this.level = level;
+            this.summary = summary;
+            this.text = text;
+        }
+    }
+    
+    /* Milliseconds between drains of the queue */
+    private static final long DRAIN_INTERVAL = 250L;
+    
+    private PersonalMotd plugin;
+    private Thread thread;
+    private volatile boolean running = true;
+    
+    private final ConcurrentLinkedQueue<Message> queue;
+    
+    private volatile LogVerbosity verbosity;
+    private volatile int burst;
+    private volatile long interval;
+    
+    /* Accessed only by the logging thread */
+    private final Map<String, Integer> counts = new HashMap<String, Integer>();
+    private long windowStart;
+    
+    /**
+     * Instantiate by starting the logging thread.
+     * 
+     * @param plugin
+     *            Reference to PersonalMotd plugin instance
+     * @param verbosity
+     *            Which messages to show, and whether to rate-limit them
+     * @param burst
+     *            Messages of each kind shown per interval before summarizing
+     * @param interval
+     *            Milliseconds per rate-limiting interval
+     */
+    public LogQueue(PersonalMotd plugin, LogVerbosity verbosity, int burst,
+            long interval) {
+        this.plugin = plugin;
+        queue = new ConcurrentLinkedQueue<Message>();
+        configure(verbosity, burst, interval);
+        windowStart = System.currentTimeMillis();
+        thread = new Thread(this, "PersonalMotd logger");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Stop the logging thread, after writing anything still queued. Messages
+     * logged afterwards, such as by tasks still finishing, are dropped.
+     */
+    public void close() {
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join(1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Change the logging settings.
+     * 
+     * @param verbosity
+     *            Which messages to show, and whether to rate-limit them
+     * @param burst
+     *            Messages of each kind shown per interval before summarizing
+     * @param interval
+     *            Milliseconds per rate-limiting interval
+     */
+    public void configure(LogVerbosity verbosity, int burst, long interval) {
+        this.verbosity = verbosity;
+        this.burst = Math.max(0, burst);
+        this.interval = Math.max(DRAIN_INTERVAL, interval);
+    }
+    
+    /**
+     * Write all queued messages, rate-limiting them unless verbose.
+     */
+    private void drain() {
+        Message message;
+        while ((message = queue.poll()) != null) {
+            if (verbosity == LogVerbosity.VERBOSE || message.summary == null) {
+                plugin.fancyLog(message.level, message.text);
+                continue;
+            }
+            Integer count = counts.get(message.summary);
+            count = count == null ? 1 : count + 1;
+            counts.put(message.summary, count);
+            if (count <= burst) {
+                plugin.fancyLog(message.level, message.text);
+            }
+        }
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= interval) {
+            for (Entry<String, Integer> entry : counts.entrySet()) {
+                if (entry.getValue() > burst) {
+                    plugin.fancyLog((entry.getValue() - burst) + " more "
+                            + entry.getKey() + " in last "
+                            + ((now - windowStart) / 1000) + "s");
+                }
+            }
+            counts.clear();
+            windowStart = now;
+        }
+    }
+    
+    /**
+     * @param level
+     *            Level of the message
+     * @return Whether messages of the level are shown at the current verbosity
+     */
+    public boolean isLoggable(Level level) {
+        switch (verbosity) {
+        case QUIET:
+            return level.intValue() >= Level.WARNING.intValue();
+        case NORMAL:
+            return level.intValue() >= Level.INFO.intValue();
+        default:
+            return true;
+        }
+    }
+    
+    /**
+     * Queue a message that is never rate-limited.
+     * 
+     * @param level
+     *            Level of the message
+     * @param text
+     *            The message to be logged
+     */
+    public void log(Level level, String text) {
+        log(level, null, text);
+    }
+    
+    /**
+     * Queue a message of a kind that may be repeated often.
+     * 
+     * @param level
+     *            Level of the message
+     * @param summary
+     *            Plural description of the kind of message, such as
+     *            "icons generated", used when summarizing
+     * @param text
+     *            The message to be logged
+     */
+    public void log(Level level, String summary, String text) {
+        if (running && isLoggable(level)) {
+            queue.offer(new Message(level, summary, text));
+        }
+    }
+    
+    /**
+     * Drain the queue periodically until closed.
+     */
+    @Override
+    public void run() {
+        while (running) {
+            drain();
+            try {
+                Thread.sleep(DRAIN_INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        drain();
+    }
+    
+}
@@ -16,19 +16,22 @@ package net.easymfne.personalmotd;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.logging.Level;
 
-import org.apache.commons.lang.StringUtils;
 import org.bukkit.ChatColor;
+import org.bukkit.Server;
 import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginLoader;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
 import org.mcstats.MetricsLite;
 
 /**
@@ -40,9 +43,14 @@ import org.mcstats.MetricsLite;
  */
 public class PersonalMotd extends JavaPlugin {
     
-    private final File addressMapFile = new File(getDataFolder().getPath()
-            + File.separator + "addressmap.yml");
-    private Map<InetAddress, String> addressMap;
+    /* Milliseconds between deletions of unused skins and icons */
+    private static final long SWEEP_INTERVAL = 60L * 60L * 1000L;
+    
+    private AddressStore addressStore = null;
+    private BukkitTask syncTask = null;
+    private ConfigWatcher configWatcher = null;
+    private LogQueue logQueue = null;
+    private SkinRefresher skinRefresher = null;
     
     private Conf conf = null;
     private CommandHandler commandHandler = null;
@@ -55,6 +63,36 @@ public class PersonalMotd extends JavaPlugin {
     
     private final String logColor = ChatColor.YELLOW.toString();
     
+    /**
+     * Instantiate the plugin, as done by the server when loading it.
+     */
+    public PersonalMotd() {
+        super();
+    }
+    
+    /**
+     * Instantiate the plugin outside of the server's plugin loader, which is
+     * only done by tests. This relies on the initialization constructor that
+     * Bukkit keeps for unit tests, deprecated and refused at runtime, so the
+     * Bukkit version is pinned in the pom and must be checked when raised.
+     * 
+     * @param loader
+     *            Loader responsible for the plugin
+     * @param server
+     *            Server the plugin runs on
+     * @param description
+     *            Description of the plugin
+     * @param dataFolder
+     *            Folder holding the plugin's configuration and data
+     * @param file
+     *            File the plugin was loaded from
+     */
+    @SuppressWarnings("deprecation")
+    protected PersonalMotd(PluginLoader loader, Server server,
+            PluginDescriptionFile description, File dataFolder, File file) {
+        super(loader, server, description, dataFolder, file);
+    }
+    
     /**
      * Log a message to the console using color, with a specific logging Level.
      * If there is no console open, log the message without any coloration.
@@ -86,10 +124,10 @@ public class PersonalMotd extends JavaPlugin {
     }
     
     /**
-     * @return Map of Address,ID pairs
+     * @return Store of Address,ID pairs
      */
-    public final Map<InetAddress, String> getAddressMap() {
-        return addressMap;
+    public final AddressStore getAddressStore() {
+        return addressStore;
     }
     
     /**
@@ -107,58 +145,60 @@ public class PersonalMotd extends JavaPlugin {
     }
     
     /**
-     * Load the saved address map from file.
-     */
-    private void loadAddressMap() {
-        addressMap = new HashMap<InetAddress, String>();
-        if (addressMapFile.exists() && addressMapFile.isFile()) {
-            YamlConfiguration addressConfig = YamlConfiguration
-                    .loadConfiguration(addressMapFile);
-            for (String a : addressConfig.getKeys(false)) {
-                ConfigurationSection csA = addressConfig
-                        .getConfigurationSection(a);
-                for (String b : csA.getKeys(false)) {
-                    ConfigurationSection csB = csA.getConfigurationSection(b);
-                    for (String c : csB.getKeys(false)) {
-                        ConfigurationSection csC = csB
-                                .getConfigurationSection(c);
-                        for (String d : csC.getKeys(false)) {
-                            String address = StringUtils.join(new String[] { a,
-                                    b, c, d }, ".");
-                            String playerId = csC.getString(d);
-                            try {
-                                addressMap.put(InetAddress.getByName(address),
-                                        playerId);
-                            } catch (UnknownHostException e) {
-                                fancyLog(Level.WARNING, "Unknown host: "
-                                        + address + " (" + playerId + ")");
-                            }
-                        }
-                    }
-                }
-            }
-        }
+     * @return Queue for logging from any thread without blocking
+     */
+    public LogQueue getLogQueue() {
+        return logQueue;
     }
     
     /**
-     * Close all event handlers and command listeners, then null instances to
-     * mark them for garbage collection. Displays elapsed time to console when
-     * finished.
+     * @return Background refresher of active players' skins
+     */
+    public SkinRefresher getSkinRefresher() {
+        return skinRefresher;
+    }
+    
+    /**
+     * Close all event handlers and command listeners, and save all state.
+     * Asynchronous tasks that are already running may still be using the
+     * stores and configuration, which are left in place for them. Displays
+     * elapsed time to console when finished.
      */
     @Override
     public void onDisable() {
         long start = Calendar.getInstance().getTimeInMillis();
         fancyLog("=== DISABLE START ===");
+        if (configWatcher != null) {
+            configWatcher.close();
+            configWatcher = null;
+        }
+        if (syncTask != null) {
+            syncTask.cancel();
+            syncTask = null;
+        }
+        if (skinRefresher != null) {
+            skinRefresher.cancel();
+        }
         try {
-            saveAddressMap();
+            addressStore.synchronize();
         } catch (IOException e) {
             fancyLog(Level.SEVERE, "Failed to save address-map configuration!");
         }
+        try {
+            conf.getSkinIndex().synchronize();
+        } catch (IOException e) {
+            fancyLog(Level.SEVERE, "Failed to save skin index!");
+        }
+        try {
+            conf.getIconCache().saveRecency();
+        } catch (IOException e) {
+            fancyLog(Level.WARNING, "Failed to save icon recency!");
+        }
         eventListener.close();
         eventListener = null;
         commandHandler.close();
         commandHandler = null;
-        conf = null;
+        logQueue.close();
         fancyLog("=== DISABLE COMPLETE ("
                 + (Calendar.getInstance().getTimeInMillis() - start)
                 + "ms) ===");
@@ -178,8 +218,21 @@ public class PersonalMotd extends JavaPlugin {
             saveDefaultConfig();
             fancyLog("Saved default config.yml");
         }
-        loadAddressMap();
         conf = new Conf(this);
+        logQueue = new LogQueue(this, conf.getLogVerbosity(),
+                conf.getLogBurst(), conf.getLogInterval());
+        addressStore = new AddressStore(this, conf.getStorageFolder());
+        int merged = conf.mergeDataFolder();
+        if (merged > 0) {
+            fancyLog("Merged " + merged + " mappings and files from the data "
+                    + "folder into the storage folder");
+        }
+        startSync();
+        skinRefresher = new SkinRefresher(this);
+        skinRefresher.runTaskTimerAsynchronously(this, SkinRefresher.INTERVAL,
+                SkinRefresher.INTERVAL);
+        startWarmUp();
+        startConfigWatcher();
         commandHandler = new CommandHandler(this);
         eventListener = new EventListener(this);
         startMetrics();
@@ -189,33 +242,52 @@ public class PersonalMotd extends JavaPlugin {
     }
     
     /**
-     * Reload the configuration from disk and perform any necessary functions.
-     * Displays elapsed time to console when finished.
+     * @return Every setting in the configuration, keyed by path
+     */
+    private Map<String, Object> getSettings() {
+        Map<String, Object> settings = new HashMap<String, Object>();
+        for (Entry<String, Object> entry : getConfig().getValues(true)
+                .entrySet()) {
+            if (!(entry.getValue() instanceof ConfigurationSection)) {
+                settings.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return settings;
+    }
+    
+    /**
+     * Reload the configuration from disk and perform any necessary functions
+     * for the settings that changed. Displays elapsed time to console when
+     * finished.
      */
     public void reload() {
         long start = Calendar.getInstance().getTimeInMillis();
         fancyLog("=== RELOAD START ===");
+        Map<String, Object> before = getSettings();
         reloadConfig();
-        conf.reload();
-        fancyLog("=== RELOAD COMPLETE ("
+        Map<String, Object> after = getSettings();
+        Set<String> changed = new HashSet<String>();
+        for (String path : before.keySet()) {
+            if (!after.containsKey(path)) {
+                changed.add(path);
+            }
+        }
+        for (Entry<String, Object> entry : after.entrySet()) {
+            Object previous = before.get(entry.getKey());
+            if (previous == null || !previous.equals(entry.getValue())) {
+                changed.add(entry.getKey());
+            }
+        }
+        conf.reload(changed);
+        logQueue.configure(conf.getLogVerbosity(), conf.getLogBurst(),
+                conf.getLogInterval());
+        skinRefresher.configure();
+        fancyLog("=== RELOAD COMPLETE (" + changed.size()
+                + " settings changed, "
                 + (Calendar.getInstance().getTimeInMillis() - start)
                 + "ms) ===");
     }
     
-    /**
-     * Save the existing address map to file.
-     * 
-     * @throws IOException
-     */
-    private void saveAddressMap() throws IOException {
-        YamlConfiguration addressConfig = new YamlConfiguration();
-        for (Entry<InetAddress, String> entry : addressMap.entrySet()) {
-            addressConfig
-                    .set(entry.getKey().getHostAddress(), entry.getValue());
-        }
-        addressConfig.save(addressMapFile);
-    }
-    
     /**
      * If possible, instantiate Metrics and connect with mcstats.org
      */
@@ -231,4 +303,107 @@ public class PersonalMotd extends JavaPlugin {
         }
     }
     
+    /**
+     * If enabled, begin watching config.yml for changes.
+     */
+    private void startConfigWatcher() {
+        if (!getConfig().getBoolean("watch-config", true)) {
+            return;
+        }
+        try {
+            configWatcher = new ConfigWatcher(this);
+        } catch (IOException e) {
+            fancyLog(Level.WARNING, "Unable to watch config.yml: "
+                    + e.getMessage());
+        }
+    }
+    
+    /**
+     * Begin periodically synchronizing the address map and skin index with the
+     * storage folder, which publishes local entries and picks up those of any
+     * other servers sharing the folder. Cached icons are checked against the
+     * folder at the same time, and unused skins and icons are deleted hourly.
+     */
+    private void startSync() {
+        long interval = conf.getStorageSyncInterval();
+        if (interval <= 0) {
+            return;
+        }
+        syncTask = new BukkitRunnable() {
+            private long lastSweep = System.currentTimeMillis();
+            
+            @Override
+            public void run() {
+                try {
+                    addressStore.synchronize();
+                } catch (IOException e) {
+                    logQueue.log(Level.WARNING, "address map sync failures",
+                            "Address map sync failed: " + e.getMessage());
+                }
+                try {
+                    conf.getSkinIndex().synchronize();
+                } catch (IOException e) {
+                    logQueue.log(Level.WARNING, "skin index sync failures",
+                            "Skin index sync failed: " + e.getMessage());
+                }
+                if (System.currentTimeMillis() - lastSweep >= SWEEP_INTERVAL) {
+                    lastSweep = System.currentTimeMillis();
+                    sweepUnreferenced();
+                }
+                conf.getIconCache().revalidate();
+                try {
+                    conf.getIconCache().saveRecency();
+                } catch (IOException e) {
+                    logQueue.log(Level.WARNING, "icon recency save failures",
+                            "Saving icon recency failed: " + e.getMessage());
+                }
+            }
+        }.runTaskTimerAsynchronously(this, interval, interval);
+    }
+    
+    /**
+     * Delete the skins and icons no player refers to any more, logging how
+     * many were deleted.
+     */
+    private void sweepUnreferenced() {
+        try {
+            int swept = conf.sweepUnreferenced();
+            if (swept > 0) {
+                logQueue.log(Level.INFO, "Deleted the skins and icons of "
+                        + swept + " skins no longer in use");
+            }
+        } catch (IOException e) {
+            logQueue.log(Level.WARNING, "storage sweep failures",
+                    "Deleting unused skins failed: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Asynchronously convert any skins and icons stored per player by older
+     * versions and delete those no longer in use, then load the icons of
+     * recently active players into memory, so that the first pings after
+     * startup are not served from disk.
+     */
+    private void startWarmUp() {
+        final IconCache iconCache = conf.getIconCache();
+        final long timeLimit = conf.getIconCacheWarmUpTime();
+        new BukkitRunnable() {
+            @Override
+            public void run() {
+                int migrated = conf.migratePlayerFiles();
+                if (migrated > 0) {
+                    logQueue.log(Level.INFO, "Converted skins and icons of "
+                            + migrated + " players to shared storage");
+                }
+                sweepUnreferenced();
+                long start = System.currentTimeMillis();
+                int loaded = iconCache.warmUp(timeLimit);
+                logQueue.log(Level.INFO, "Icon cache warmed up with " + loaded
+                        + " icons, " + (iconCache.getMemoryUsed() / 1024)
+                        + "KB (" + (System.currentTimeMillis() - start)
+                        + "ms)");
+            }
+        }.runTaskAsynchronously(this);
+    }
+    
 }
@@ -0,0 +1,154 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Token-bucket limiter for server list pings, with one bucket shared by all
+ * sources and a fixed table of per-address buckets. Addresses hashing to the
+ * same slot share a bucket, so the table never grows however many sources
+ * ping. Each bucket is a single long updated by compare-and-set, holding the
+ * time of its last refill and its remaining tokens, so no locks are taken and
+ * nothing is allocated per ping.
+ */
+public class PingLimiter {
+    
+    /* Bits of a bucket used for its tokens, in thousandths of a token */
+    private static final int TOKEN_BITS = 24;
+    private static final long TOKEN_MASK = (1L << TOKEN_BITS) - 1;
+    private static final long MAX_BURST = TOKEN_MASK / 1000;
+    
+    private final long epoch = System.currentTimeMillis();
+    
+    private final AtomicLongArray slots;
+    private final AtomicLong global;
+    
+    private final long addressRate;
+    private final long addressBurst;
+    private final long globalRate;
+    private final long globalBurst;
+    
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+    
+    /**
+     * @param slots
+     *            Number of per-address buckets
+     * @param addressRate
+     *            Pings per second allowed from each address, or 0 for no limit
+     * @param addressBurst
+     *            Pings an address may send at once
+     * @param globalRate
+     *            Pings per second allowed in total, or 0 for no limit
+     * @param globalBurst
+     *            Pings that may arrive at once in total
+     */
+    public PingLimiter(int slots, int addressRate, int addressBurst,
+            int globalRate, int globalBurst) {
+        this.slots = new AtomicLongArray(Math.max(1, slots));
+        this.addressRate = Math.max(0, addressRate);
+        this.addressBurst = 1000L * Math.min(MAX_BURST, Math.max(1,
+                addressBurst));
+        this.globalRate = Math.max(0, globalRate);
+        this.globalBurst = 1000L * Math.min(MAX_BURST, Math.max(1,
+                globalBurst));
+        long full = this.addressBurst;
+        for (int i = 0; i < this.slots.length(); i++) {
+            this.slots.set(i, full);
+        }
+        global = new AtomicLong(this.globalBurst);
+    }
+    
+    /**
+     * @return Number of pings given the personalized response
+     */
+    public long getServed() {
+        return served.get();
+    }
+    
+    /**
+     * @return Number of pings given the default response due to the limits
+     */
+    public long getShed() {
+        return shed.get();
+    }
+    
+    /**
+     * @param address
+     *            Address of the pinging client
+     * @return Whether the ping is within budget, false if it should be given
+     *         the default response
+     */
+    public boolean tryAcquire(InetAddress address) {
+        boolean allowed = true;
+        if (addressRate > 0) {
+            int hash = address.hashCode();
+            hash ^= (hash >>> 16);
+            hash *= 0x45D9F3B;
+            hash ^= (hash >>> 16);
+            int index = (hash & Integer.MAX_VALUE) % slots.length();
+            allowed = tryAcquire(index, addressRate, addressBurst);
+        }
+        if (allowed && globalRate > 0) {
+            allowed = tryAcquire(-1, globalRate, globalBurst);
+        }
+        if (allowed) {
+            served.incrementAndGet();
+        } else {
+            shed.incrementAndGet();
+        }
+        return allowed;
+    }
+    
+    /**
+     * Refill a bucket for the time elapsed since it was last used, then take a
+     * token from it if one is available.
+     * 
+     * @param index
+     *            Slot of the bucket, or -1 for the global bucket
+     * @param rate
+     *            Tokens added per second
+     * @param burst
+     *            Capacity of the bucket, in thousandths of a token
+     * @return Whether a token was taken
+     */
+    private boolean tryAcquire(int index, long rate, long burst) {
+        long now = System.currentTimeMillis() - epoch;
+        while (true) {
+            long state = index < 0 ? global.get() : slots.get(index);
+            long last = state >>> TOKEN_BITS;
+            long tokens = state & TOKEN_MASK;
+            if (now > last) {
+                tokens = Math.min(burst, tokens + (now - last) * rate);
+            }
+            boolean allowed = tokens >= 1000;
+            if (allowed) {
+                tokens -= 1000;
+            }
+            long update = (Math.max(now, last) << TOKEN_BITS) | tokens;
+            if (update == state) {
+                return allowed;
+            }
+            if (index < 0 ? global.compareAndSet(state, update) : slots
+                    .compareAndSet(index, state, update)) {
+                return allowed;
+            }
+        }
+    }
+    
+}
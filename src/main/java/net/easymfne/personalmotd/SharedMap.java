@@ -0,0 +1,187 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.bukkit.configuration.file.FileConfiguration;
+
+/**
+ * Thread-safe map to strings backed by a YAML file that may be shared between
+ * several servers. All file access happens under an exclusive lock, and local
+ * changes are merged with those of other servers rather than overwriting them.
+ * 
+ * @param <K>
+ *            Type of the keys
+ */
+public abstract class SharedMap<K> {
+    
+    private final File file;
+    private final File lockFile;
+    
+    /* Local changes not yet published to the file */
+    private final ConcurrentMap<K, String> dirty;
+    
+    private long lastModified = -1L;
+    
+    /**
+     * @param file
+     *            File backing the map, locked by way of a file beside it
+     */
+    protected SharedMap(File file) {
+        this.file = file;
+        lockFile = new File(file.getPath() + ".lock");
+        dirty = new ConcurrentHashMap<K, String>();
+    }
+    
+    /**
+     * @param key
+     *            Key to look up
+     * @return Value of the key, or null if none
+     */
+    public abstract String get(K key);
+    
+    /**
+     * @return File backing the map
+     */
+    protected File getFile() {
+        return file;
+    }
+    
+    /**
+     * @return Values changed locally and not yet published
+     */
+    protected Collection<String> getUnpublished() {
+        return dirty.values();
+    }
+    
+    /**
+     * Lock the file against other servers, blocking until the lock is
+     * granted. Closing the returned file releases the lock.
+     * 
+     * @return The open lock file
+     * @throws IOException
+     */
+    protected RandomAccessFile lock() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+        try {
+            raf.getChannel().lock();
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        return raf;
+    }
+    
+    /**
+     * Merge the entries of another file into the map, such as one left behind
+     * by a move of the map, keeping the current value of any key found in
+     * both. Added entries are published on the next synchronization.
+     * 
+     * @param source
+     *            File to merge
+     * @return Number of entries added
+     * @throws IOException
+     */
+    public int merge(File source) throws IOException {
+        Map<K, String> added = new HashMap<K, String>();
+        for (Entry<K, String> entry : read(source).entrySet()) {
+            if (get(entry.getKey()) == null) {
+                added.put(entry.getKey(), entry.getValue());
+            }
+        }
+        store(added);
+        for (Entry<K, String> entry : added.entrySet()) {
+            publish(entry.getKey(), entry.getValue());
+        }
+        return added.size();
+    }
+    
+    /**
+     * Mark an entry for publication on the next synchronization.
+     * 
+     * @param key
+     *            Key of the entry
+     * @param value
+     *            Value of the entry
+     */
+    protected void publish(K key, String value) {
+        dirty.put(key, value);
+    }
+    
+    /**
+     * @param source
+     *            File to read
+     * @return Map of the entries found
+     * @throws IOException
+     */
+    protected abstract Map<K, String> read(File source) throws IOException;
+    
+    /**
+     * Store entries read from the file, or changed locally, in memory.
+     * 
+     * @param entries
+     *            Entries to store
+     */
+    protected abstract void store(Map<K, String> entries);
+    
+    /**
+     * Bring the memory and the file into agreement. If the file was changed by
+     * another server it is re-read, and if there are local changes they are
+     * merged into it and written back. The file is locked for the duration, so
+     * concurrent servers never lose each other's updates.
+     * 
+     * @throws IOException
+     */
+    public synchronized void synchronize() throws IOException {
+        if (dirty.isEmpty() && file.lastModified() == lastModified) {
+            return;
+        }
+        RandomAccessFile lock = lock();
+        try {
+            Map<K, String> merged = read(file);
+            Map<K, String> local = new HashMap<K, String>(dirty);
+            merged.putAll(local);
+            if (!local.isEmpty()) {
+                AtomicFile.save(toConfiguration(merged), file);
+            }
+            store(merged);
+            for (Entry<K, String> entry : local.entrySet()) {
+                dirty.remove(entry.getKey(), entry.getValue());
+            }
+            store(dirty);
+            lastModified = file.lastModified();
+        } finally {
+            lock.close();
+        }
+    }
+    
+    /**
+     * @param entries
+     *            Entries to write
+     * @return Configuration holding the entries, as saved to the file
+     */
+    protected abstract FileConfiguration toConfiguration(
+            Map<K, String> entries);
+    
+}
@@ -0,0 +1,186 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+/**
+ * Fetches player skins from an ordered chain of providers. Each provider has a
+ * circuit breaker which skips it for a while after repeated failures, and
+ * players that providers report having no skin are not retried until a
+ * backoff period, doubling with each such answer, has passed.
+ */
+public class SkinFetcher {
+    
+    /**
+     * Circuit breaker guarding a single provider.
+     */
+    private class Breaker {
+        private final SkinProvider provider;
+        private int failures = 0;
+        private long openUntil = 0L;
+        
+        public Breaker(SkinProvider provider) {
+            this.provider = provider;
+        }
+        
+        /**
+         * @return Whether a request may be made. Once the cooldown of an open
+         *         breaker ends, a single trial request is let through.
+         */
+        public synchronized boolean allow() {
+            long now = System.currentTimeMillis();
+            if (now < openUntil) {
+                return false;
+            }
+            if (failures >= failureThreshold) {
+                openUntil = now + cooldown;
+            }
+            return true;
+        }
+        
+        public synchronized void failure(IOException e) {
+            failures++;
+            if (failures == failureThreshold) {
+                openUntil = System.currentTimeMillis() + cooldown;
+                plugin.getLogQueue().log(Level.WARNING, "Skin provider "
+                        + provider.getName() + " failing, skipping for "
+                        + (cooldown / 1000) + "s (" + e.getMessage() + ")");
+            } else if (failures > failureThreshold) {
+                openUntil = System.currentTimeMillis() + cooldown;
+            }
+        }
+        
+        public synchronized void success() {
+            failures = 0;
+            openUntil = 0L;
+        }
+    }
+    
+    /**
+     * Record of unsuccessful fetches for a player.
+     */
+    private static class Backoff {
+        private final int failures;
+        private final long retryAt;
+        
+        public Backoff(int failures, long retryAt) {
+            this.failures = failures;
+            this.retryAt = retryAt;
+        }
+    }
+    
+    private PersonalMotd plugin;
+    
+    private final List<Breaker> breakers;
+    private final ConcurrentHashMap<String, Backoff> backoffs;
+    
+    private int failureThreshold;
+    private long cooldown;
+    private long minRetry;
+    private long maxRetry;
+    
+    /**
+     * @param plugin
+     *            Reference to PersonalMotd plugin instance
+     * @param providers
+     *            Providers to ask, in order
+     * @param failureThreshold
+     *            Consecutive failures after which a provider is skipped
+     * @param cooldown
+     *            Milliseconds to skip a failing provider for
+     * @param minRetry
+     *            Milliseconds before retrying a player with no skin
+     * @param maxRetry
+     *            Upper limit of the backoff for a player with no skin
+     */
+    public SkinFetcher(PersonalMotd plugin, List<SkinProvider> providers,
+            int failureThreshold, long cooldown, long minRetry, long maxRetry) {
+        this.plugin = plugin;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.cooldown = cooldown;
+        this.minRetry = minRetry;
+        this.maxRetry = Math.max(minRetry, maxRetry);
+        breakers = new ArrayList<Breaker>();
+        for (SkinProvider provider : providers) {
+            breakers.add(new Breaker(provider));
+        }
+        backoffs = new ConcurrentHashMap<String, Backoff>();
+    }
+    
+    /**
+     * Ask each available provider in turn for the player's skin. The player is
+     * only backed off when a provider answered that it has no skin for them,
+     * not when every provider failed or was skipped.
+     * 
+     * @param playerId
+     *            Player name
+     * @return Skin image, or null if the providers that answered had none
+     * @throws IOException
+     *             If no provider could be asked successfully
+     */
+    public BufferedImage fetch(String playerId) throws IOException {
+        IOException failure = null;
+        boolean answered = false;
+        for (Breaker breaker : breakers) {
+            if (!breaker.allow()) {
+                continue;
+            }
+            try {
+                BufferedImage skin = breaker.provider.getSkin(playerId);
+                breaker.success();
+                if (skin != null) {
+                    backoffs.remove(playerId);
+                    return skin;
+                }
+                answered = true;
+            } catch (IOException e) {
+                breaker.failure(e);
+                failure = e;
+            }
+        }
+        if (!answered) {
+            throw failure != null ? failure : new IOException(
+                    "All skin providers are being skipped");
+        }
+        Backoff previous = backoffs.get(playerId);
+        int failures = previous == null ? 1 : previous.failures + 1;
+        long delay = minRetry << Math.min(failures - 1, 30);
+        if (delay < 0 || delay > maxRetry) {
+            delay = maxRetry;
+        }
+        backoffs.put(playerId, new Backoff(failures, System.currentTimeMillis()
+                + delay));
+        return null;
+    }
+    
+    /**
+     * @param playerId
+     *            Player name
+     * @return Whether a fetch for the player should be attempted, false while
+     *         a previous failure is backing off
+     */
+    public boolean isDue(String playerId) {
+        Backoff backoff = backoffs.get(playerId);
+        return backoff == null
+                || System.currentTimeMillis() >= backoff.retryAt;
+    }
+    
+}
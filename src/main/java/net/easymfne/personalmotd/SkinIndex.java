@@ -0,0 +1,272 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * Thread-safe Name->Hash map recording which skin each player has. Skins and
+ * icons are stored once per distinct skin, named by the hash of its pixels, so
+ * players sharing a skin share its files and its cached icon. Like the
+ * AddressStore, the index is backed by a file that may be shared between
+ * several servers.
+ */
+public class SkinIndex extends SharedMap<String> {
+    
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    
+    private final Map<String, String> map;
+    
+    /**
+     * @param skin
+     *            Skin image
+     * @return Hexadecimal SHA-1 hash of the skin's size and pixels
+     */
+    public static String hashOf(BufferedImage skin) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        int width = skin.getWidth();
+        int height = skin.getHeight();
+        int[] pixels = skin.getRGB(0, 0, width, height, null, 0, width);
+        byte[] bytes = new byte[8 + 4 * pixels.length];
+        int i = 0;
+        for (int value : new int[] { width, height }) {
+            bytes[i++] = (byte) (value >>> 24);
+            bytes[i++] = (byte) (value >>> 16);
+            bytes[i++] = (byte) (value >>> 8);
+            bytes[i++] = (byte) value;
+        }
+        for (int value : pixels) {
+            bytes[i++] = (byte) (value >>> 24);
+            bytes[i++] = (byte) (value >>> 16);
+            bytes[i++] = (byte) (value >>> 8);
+            bytes[i++] = (byte) value;
+        }
+        byte[] hash = digest.digest(bytes);
+        char[] hex = new char[2 * hash.length];
+        for (int j = 0; j < hash.length; j++) {
+            hex[2 * j] = HEX[(hash[j] >>> 4) & 0xF];
+            hex[2 * j + 1] = HEX[hash[j] & 0xF];
+        }
+        return new String(hex);
+    }
+    
+    /**
+     * @param name
+     *            File name without extension
+     * @return Whether the name is a skin hash
+     */
+    public static boolean isHash(String name) {
+        if (name.length() != 40) {
+            return false;
+        }
+        for (char c : name.toCharArray()) {
+            if (Character.digit(c, 16) < 0 || Character.isUpperCase(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Instantiate the index and read any existing entries from disk.
+     * 
+     * @param plugin
+     *            Reference to PersonalMotd plugin instance
+     * @param folder
+     *            Folder containing the index file
+     */
+    public SkinIndex(PersonalMotd plugin, File folder) {
+        super(new File(folder, "skinindex.yml"));
+        map = new ConcurrentHashMap<String, String>();
+        try {
+            synchronize();
+        } catch (IOException e) {
+            plugin.fancyLog(Level.SEVERE, "Failed to load skin index: "
+                    + e.getMessage());
+        }
+    }
+    
+    /**
+     * @param playerId
+     *            Player to look up
+     * @return Hash of the player's skin, or null if none is known
+     */
+    @Override
+    public String get(String playerId) {
+        return map.get(playerId);
+    }
+    
+    /**
+     * @return Read-only view of the Name,Hash pairs
+     */
+    public Map<String, String> getMap() {
+        return Collections.unmodifiableMap(map);
+    }
+    
+    /**
+     * Record a player's skin, marking it for publication on the next
+     * synchronization.
+     * 
+     * @param playerId
+     *            Name of the player
+     * @param hash
+     *            Hash of the player's skin
+     */
+    public void put(String playerId, String hash) {
+        if (!hash.equals(map.put(playerId, hash))) {
+            publish(playerId, hash);
+        }
+    }
+    
+    /**
+     * @param source
+     *            File to read
+     * @return Map of the entries found
+     */
+    @Override
+    protected Map<String, String> read(File source) {
+        Map<String, String> result = new HashMap<String, String>();
+        if (!source.isFile()) {
+            return result;
+        }
+        YamlConfiguration indexConfig = YamlConfiguration
+                .loadConfiguration(source);
+        for (String playerId : indexConfig.getKeys(false)) {
+            String hash = indexConfig.getString(playerId);
+            if (hash != null && isHash(hash)) {
+                result.put(playerId, hash);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * @return Number of players indexed
+     */
+    public int size() {
+        return map.size();
+    }
+    
+    /**
+     * Delete skins and icons whose hash no player in the index refers to any
+     * more, along with leftover temporary files. The index is locked for the
+     * duration, and a hash's files are only deleted once all of them are
+     * older than the given age, so files just written or referred to again by
+     * another server whose index entry is not yet published are spared.
+     * 
+     * @param age
+     *            Milliseconds since a file was last modified before it may be
+     *            deleted
+     * @param folders
+     *            Folders holding files named by hash
+     * @return Hashes whose files were deleted
+     * @throws IOException
+     */
+    public synchronized Set<String> sweep(long age, File... folders)
+            throws IOException {
+        Set<String> removed = new HashSet<String>();
+        RandomAccessFile lock = lock();
+        try {
+            Set<String> referenced = new HashSet<String>(read(getFile())
+                    .values());
+            referenced.addAll(map.values());
+            referenced.addAll(getUnpublished());
+            long cutoff = System.currentTimeMillis() - age;
+            Map<String, Long> newest = new HashMap<String, Long>();
+            List<File> unreferenced = new ArrayList<File>();
+            for (File folder : folders) {
+                File[] files = folder.listFiles();
+                for (int i = 0; files != null && i < files.length; i++) {
+                    if (!files[i].isFile()) {
+                        continue;
+                    }
+                    String name = files[i].getName();
+                    long modified = files[i].lastModified();
+                    if (name.endsWith(".tmp")) {
+                        if (modified <= cutoff) {
+                            files[i].delete();
+                        }
+                    } else if (name.endsWith(".png")) {
+                        String hash = name.substring(0, name.length() - 4);
+                        if (isHash(hash) && !referenced.contains(hash)) {
+                            Long previous = newest.get(hash);
+                            if (previous == null || previous < modified) {
+                                newest.put(hash, modified);
+                            }
+                            unreferenced.add(files[i]);
+                        }
+                    }
+                }
+            }
+            for (File file : unreferenced) {
+                String name = file.getName();
+                String hash = name.substring(0, name.length() - 4);
+                if (newest.get(hash) <= cutoff && file.delete()) {
+                    removed.add(hash);
+                }
+            }
+        } finally {
+            lock.close();
+        }
+        return removed;
+    }
+    
+    /**
+     * @param entries
+     *            Entries to store in memory
+     */
+    @Override
+    protected void store(Map<String, String> entries) {
+        map.putAll(entries);
+    }
+    
+    /**
+     * @param entries
+     *            Entries to write
+     * @return Index holding the entries, keyed by player
+     */
+    @Override
+    protected FileConfiguration toConfiguration(Map<String, String> entries) {
+        YamlConfiguration indexConfig = new YamlConfiguration();
+        for (Entry<String, String> entry : entries.entrySet()) {
+            indexConfig.set(entry.getKey(), entry.getValue());
+        }
+        return indexConfig;
+    }
+    
+}
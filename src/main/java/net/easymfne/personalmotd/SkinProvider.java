@@ -0,0 +1,39 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * A source from which player skins can be obtained.
+ */
+public interface SkinProvider {
+    
+    /**
+     * @return Description of the provider for log messages
+     */
+    public String getName();
+    
+    /**
+     * @param playerId
+     *            Player name
+     * @return Skin image, or null if the provider has no skin for the player
+     * @throws IOException
+     *             If the provider could not be reached or answered in error
+     */
+    public BufferedImage getSkin(String playerId) throws IOException;
+    
+}
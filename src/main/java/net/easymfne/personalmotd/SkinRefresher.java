@@ -0,0 +1,215 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * Asynchronous task that revalidates the skins of online and recently seen
+ * players in the background. Each player is due again a jittered period after
+ * their last attempt, so the work spreads evenly over the period instead of
+ * bunching at login peaks, and no more than a set number of players are
+ * revalidated per minute. Logins skip fetching skins fetched recently.
+ */
+public class SkinRefresher extends BukkitRunnable {
+    
+    /* Ticks between runs of the task */
+    public static final long INTERVAL = 20L;
+    
+    private PersonalMotd plugin;
+    
+    private final ConcurrentHashMap<String, Long> dueAt;
+    private final ConcurrentHashMap<String, Long> revalidatedAt;
+    private final ConcurrentHashMap<String, Long> lastSeen;
+    private final ConcurrentHashMap<String, Boolean> online;
+    
+    private volatile long period;
+    private volatile double jitter;
+    private volatile double perRun;
+    private volatile long loginSkip;
+    private volatile long keep;
+    
+    /* Set while a run is in progress, so runs never overlap */
+    private final AtomicBoolean running = new AtomicBoolean();
+    
+    /* Accessed only by the run in progress */
+    private double budget = 0.0;
+    
+    /**
+     * @param plugin
+     *            Reference to PersonalMotd plugin instance
+     */
+    public SkinRefresher(PersonalMotd plugin) {
+        this.plugin = plugin;
+        dueAt = new ConcurrentHashMap<String, Long>();
+        revalidatedAt = new ConcurrentHashMap<String, Long>();
+        lastSeen = new ConcurrentHashMap<String, Long>();
+        online = new ConcurrentHashMap<String, Boolean>();
+        configure();
+    }
+    
+    /**
+     * Read the refresh settings from the configuration.
+     */
+    public void configure() {
+        Conf conf = plugin.getConf();
+        period = conf.getSkinRefreshPeriod();
+        jitter = Math.max(0.0, Math.min(1.0, conf.getSkinRefreshJitter()));
+        perRun = conf.getSkinRefreshRate() * INTERVAL / (20.0 * 60.0);
+        loginSkip = conf.getSkinRefreshLoginSkip();
+        keep = conf.getSkinRefreshKeep();
+    }
+    
+    /**
+     * @param playerId
+     *            Player
+     * @return Whether the player's skin was revalidated recently enough for a
+     *         login to skip fetching it
+     */
+    public boolean isFresh(String playerId) {
+        Long time = revalidatedAt.get(playerId);
+        return time != null && System.currentTimeMillis() - time < loginSkip;
+    }
+    
+    /**
+     * @return Number of players whose skins are being kept fresh
+     */
+    public int size() {
+        return lastSeen.size();
+    }
+    
+    /**
+     * Record that a player has joined, keeping their skin fresh for as long
+     * as they stay online.
+     * 
+     * @param playerId
+     *            Player
+     */
+    public void joined(String playerId) {
+        online.put(playerId, Boolean.TRUE);
+        seen(playerId);
+    }
+    
+    /**
+     * Record that a player has left, keeping their skin fresh for a while
+     * longer in case they return.
+     * 
+     * @param playerId
+     *            Player
+     */
+    public void left(String playerId) {
+        online.remove(playerId);
+        seen(playerId);
+    }
+    
+    /**
+     * Record that a player's skin was just fetched successfully, so logins
+     * may skip fetching it for a while, and schedule the next revalidation.
+     * 
+     * @param playerId
+     *            Player
+     */
+    public void revalidated(String playerId) {
+        long now = System.currentTimeMillis();
+        revalidatedAt.put(playerId, now);
+        schedule(playerId, now);
+    }
+    
+    /**
+     * Revalidate players that are due, up to the rate limit, and forget
+     * players that have been gone too long. Does nothing if the previous run,
+     * which may be waiting on slow skin sources, has not finished yet.
+     */
+    @Override
+    public void run() {
+        if (period <= 0 || !running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            budget = Math.min(budget + perRun, Math.max(1.0, perRun));
+            for (String playerId : dueAt.keySet()) {
+                if (!online.containsKey(playerId)) {
+                    Long seen = lastSeen.get(playerId);
+                    if (seen == null || now - seen > keep) {
+                        forget(playerId);
+                        continue;
+                    }
+                }
+                Long due = dueAt.get(playerId);
+                if (due == null || due > now || budget < 1.0) {
+                    continue;
+                }
+                if (!plugin.isEnabled()) {
+                    return;
+                }
+                budget -= 1.0;
+                schedule(playerId, now);
+                IconFactory.refreshIcon(plugin, playerId);
+                now = System.currentTimeMillis();
+            }
+        } finally {
+            running.set(false);
+        }
+    }
+    
+    /**
+     * Schedule a player's next revalidation a jittered period from now.
+     * 
+     * @param playerId
+     *            Player
+     * @param now
+     *            Current time
+     */
+    private void schedule(String playerId, long now) {
+        double factor = 1.0 + jitter
+                * (2.0 * ThreadLocalRandom.current().nextDouble() - 1.0);
+        dueAt.put(playerId, now + (long) (period * factor));
+    }
+    
+    /**
+     * Stop keeping a player's skin fresh.
+     * 
+     * @param playerId
+     *            Player
+     */
+    private void forget(String playerId) {
+        dueAt.remove(playerId);
+        revalidatedAt.remove(playerId);
+        lastSeen.remove(playerId);
+    }
+    
+    /**
+     * Record that a player was seen, scheduling a first revalidation at a
+     * random point within the period if none is scheduled.
+     * 
+     * @param playerId
+     *            Player
+     */
+    public void seen(String playerId) {
+        long now = System.currentTimeMillis();
+        lastSeen.put(playerId, now);
+        if (!dueAt.containsKey(playerId)) {
+            dueAt.putIfAbsent(playerId, now
+                    + (long) (period * ThreadLocalRandom.current()
+                            .nextDouble()));
+        }
+    }
+    
+}
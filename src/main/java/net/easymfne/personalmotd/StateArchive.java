@@ -0,0 +1,597 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import javax.imageio.ImageIO;
+
+import org.bukkit.command.CommandSender;
+import org.bukkit.scheduler.BukkitRunnable;
+
+/**
+ * Single-file archive of the plugin's state, for moving it between servers.
+ * The archive is a stream of records holding the address mappings, the skin
+ * index, and the stored skins and icons as their existing PNG data, so that
+ * nothing is re-encoded. Images are copied from file to archive channel
+ * without passing through the heap, and on import they are decoded and
+ * validated in parallel with a bounded number of bytes waiting in memory.
+ * Both directions run asynchronously.
+ */
+public class StateArchive {
+    
+    /**
+     * Asynchronous task writing the current state to an archive.
+     */
+    private static class Exporter extends BukkitRunnable {
+        private PersonalMotd plugin;
+        private CommandSender sender;
+        private File file;
+        
+        public Exporter(PersonalMotd plugin, CommandSender sender, File file) {
+            this.plugin = plugin;
+            this.sender = sender;
+            this.file = file;
+        }
+        
+        @Override
+        public void run() {
+            long start = System.currentTimeMillis();
+            try {
+                StateArchive archive = new StateArchive(plugin, file);
+                archive.write();
+                report(plugin, sender, "Exported " + archive.addresses
+                        + " addresses, " + archive.players + " players, "
+                        + archive.skins.get() + " skins and "
+                        + archive.icons.get() + " icons to " + file.getName()
+                        + " ("
+                        + (System.currentTimeMillis() - start) + "ms)");
+            } catch (IOException e) {
+                report(plugin, sender, "Export to " + file.getName()
+                        + " failed: " + e.getMessage());
+            } finally {
+                busy.set(false);
+            }
+        }
+    }
+    
+    /**
+     * Asynchronous task merging the state held in an archive.
+     */
+    private static class Importer extends BukkitRunnable {
+        private PersonalMotd plugin;
+        private CommandSender sender;
+        private File file;
+        
+        public Importer(PersonalMotd plugin, CommandSender sender, File file) {
+            this.plugin = plugin;
+            this.sender = sender;
+            this.file = file;
+        }
+        
+        @Override
+        public void run() {
+            long start = System.currentTimeMillis();
+            try {
+                StateArchive archive = new StateArchive(plugin, file);
+                archive.read();
+                report(plugin, sender, "Imported " + archive.addresses
+                        + " addresses, " + archive.players + " players, "
+                        + archive.skins.get() + " skins and "
+                        + archive.icons.get() + " icons from "
+                        + file.getName() + ", rejected "
+                        + archive.rejected.get() + " images ("
+                        + (System.currentTimeMillis() - start) + "ms)");
+            } catch (IOException e) {
+                report(plugin, sender, "Import from " + file.getName()
+                        + " failed: " + e.getMessage());
+            } finally {
+                busy.set(false);
+            }
+        }
+    }
+    
+    /* Extension every archive name ends with */
+    public static final String EXTENSION = ".pmotd";
+    
+    /* Identifies the archive format, "PMTA" followed by its version */
+    private static final int MAGIC = 0x504D5441;
+    private static final int VERSION = 1;
+    
+    /* Record types */
+    private static final byte END = 0;
+    private static final byte ADDRESS = 1;
+    private static final byte PLAYER = 2;
+    private static final byte SKIN = 3;
+    private static final byte ICON = 4;
+    
+    /* Size of the buffer between the archive and its channel */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    /* Largest image accepted, in bytes */
+    private static final int MAX_IMAGE = 1024 * 1024;
+    
+    /* Image data read but not yet validated, in kilobytes */
+    private static final int MAX_PENDING = 16 * 1024;
+    
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    /* Set while an export or import is running */
+    private static final AtomicBoolean busy = new AtomicBoolean();
+    
+    /**
+     * @param name
+     *            Name given for an archive
+     * @return The name without any directory, and ending with the archive
+     *         extension, so that an archive never replaces any of the plugin's
+     *         other files
+     */
+    public static String getArchiveName(String name) {
+        name = new File(name).getName();
+        if (!name.toLowerCase().endsWith(EXTENSION)) {
+            name += EXTENSION;
+        }
+        return name;
+    }
+    
+    /**
+     * @param plugin
+     *            Plugin reference
+     * @param name
+     *            Name given for an archive
+     * @return Archive file in the plugin's data folder
+     */
+    private static File getFile(PersonalMotd plugin, String name) {
+        return new File(plugin.getDataFolder(), getArchiveName(name));
+    }
+    
+    /**
+     * Send a message to the command's sender from the main thread.
+     * 
+     * @param plugin
+     *            Plugin reference
+     * @param sender
+     *            Sender of the command
+     * @param message
+     *            Message to send
+     */
+    private static void report(PersonalMotd plugin,
+            final CommandSender sender, final String message) {
+        if (plugin.isEnabled()) {
+            plugin.getServer().getScheduler().runTask(plugin, new Runnable() {
+                @Override
+                public void run() {
+                    sender.sendMessage(message);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Create a new asynchronous task for exporting all state to an archive.
+     * 
+     * @param plugin
+     *            Plugin reference
+     * @param sender
+     *            Sender to report the outcome to
+     * @param name
+     *            Name of the archive in the plugin's data folder
+     * @return Whether the task was started, false if a transfer is running
+     */
+    public static boolean startExport(PersonalMotd plugin,
+            CommandSender sender, String name) {
+        if (!busy.compareAndSet(false, true)) {
+            return false;
+        }
+        new Exporter(plugin, sender, getFile(plugin, name))
+                .runTaskAsynchronously(plugin);
+        return true;
+    }
+    
+    /**
+     * Create a new asynchronous task for merging an archive into the current
+     * state.
+     * 
+     * @param plugin
+     *            Plugin reference
+     * @param sender
+     *            Sender to report the outcome to
+     * @param name
+     *            Name of the archive in the plugin's data folder
+     * @return Whether the task was started, false if a transfer is running
+     */
+    public static boolean startImport(PersonalMotd plugin,
+            CommandSender sender, String name) {
+        if (!busy.compareAndSet(false, true)) {
+            return false;
+        }
+        new Importer(plugin, sender, getFile(plugin, name))
+                .runTaskAsynchronously(plugin);
+        return true;
+    }
+    
+    private PersonalMotd plugin;
+    private File file;
+    
+    private final ByteBuffer buffer;
+    private FileChannel channel;
+    
+    /* Counted by the exporting or importing thread alone */
+    private int addresses = 0;
+    private int players = 0;
+    
+    /* Counted by the threads validating images */
+    private final AtomicInteger skins = new AtomicInteger();
+    private final AtomicInteger icons = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    
+    /**
+     * @param plugin
+     *            Reference to PersonalMotd plugin instance
+     * @param file
+     *            Archive file
+     */
+    private StateArchive(PersonalMotd plugin, File file) {
+        this.plugin = plugin;
+        this.file = file;
+        buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+    
+    /**
+     * Make room in the buffer for writing, flushing it if necessary.
+     * 
+     * @param count
+     *            Number of bytes about to be put
+     * @throws IOException
+     */
+    private void ensure(int count) throws IOException {
+        if (buffer.remaining() < count) {
+            flush();
+        }
+    }
+    
+    /**
+     * Write the contents of the buffer to the channel.
+     * 
+     * @throws IOException
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+    
+    /**
+     * Read bytes from the buffer, refilling it from the channel as needed.
+     * 
+     * @param bytes
+     *            Array to fill
+     * @throws IOException
+     */
+    private void getBytes(byte[] bytes) throws IOException {
+        int offset = 0;
+        while (offset < bytes.length) {
+            need(1);
+            int count = Math.min(buffer.remaining(), bytes.length - offset);
+            buffer.get(bytes, offset, count);
+            offset += count;
+        }
+    }
+    
+    /**
+     * @return String read from the buffer
+     * @throws IOException
+     */
+    private String getString() throws IOException {
+        need(2);
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        getBytes(bytes);
+        return new String(bytes, UTF8);
+    }
+    
+    /**
+     * Ensure the buffer holds enough bytes for reading, refilling it from the
+     * channel if necessary.
+     * 
+     * @param count
+     *            Number of bytes about to be got
+     * @throws IOException
+     *             If the archive ends first
+     */
+    private void need(int count) throws IOException {
+        if (buffer.remaining() >= count) {
+            return;
+        }
+        buffer.compact();
+        while (buffer.position() < count) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Archive ends unexpectedly");
+            }
+        }
+        buffer.flip();
+    }
+    
+    /**
+     * Write an image record, copying the image straight from its file to the
+     * archive channel.
+     * 
+     * @param type
+     *            Record type
+     * @param hash
+     *            Hash of the skin
+     * @param source
+     *            Image file
+     * @return Whether the image was written, false if it does not exist or is
+     *         too large
+     * @throws IOException
+     */
+    private boolean putImage(byte type, String hash, File source)
+            throws IOException {
+        if (!source.isFile()) {
+            return false;
+        }
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileChannel from = in.getChannel();
+            long size = from.size();
+            if (size > MAX_IMAGE) {
+                return false;
+            }
+            ensure(1);
+            buffer.put(type);
+            putString(hash);
+            ensure(4);
+            buffer.putInt((int) size);
+            flush();
+            long position = 0;
+            while (position < size) {
+                long count = from.transferTo(position, size - position,
+                        channel);
+                if (count <= 0) {
+                    throw new EOFException(source.getName()
+                            + " changed while being exported");
+                }
+                position += count;
+            }
+            return true;
+        } finally {
+            in.close();
+        }
+    }
+    
+    /**
+     * @param string
+     *            String to put in the buffer
+     * @throws IOException
+     */
+    private void putString(String string) throws IOException {
+        byte[] bytes = string.getBytes(UTF8);
+        if (bytes.length > Short.MAX_VALUE) {
+            throw new IOException("String too long to export");
+        }
+        ensure(2 + bytes.length);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+    
+    /**
+     * Merge the archive into the current state. Mappings are applied as they
+     * are read, while images are handed to a pool of threads to be decoded and
+     * validated, pausing whenever too much image data is waiting.
+     * 
+     * @throws IOException
+     */
+    private void read() throws IOException {
+        AddressStore store = plugin.getAddressStore();
+        SkinIndex index = plugin.getConf().getSkinIndex();
+        final Semaphore pending = new Semaphore(MAX_PENDING);
+        FileInputStream in = new FileInputStream(file);
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime
+                .getRuntime().availableProcessors());
+        try {
+            channel = in.getChannel();
+            buffer.clear();
+            buffer.flip();
+            need(8);
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not an archive");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported archive version "
+                        + version);
+            }
+            while (true) {
+                need(1);
+                byte type = buffer.get();
+                if (type == END) {
+                    break;
+                } else if (type == ADDRESS) {
+                    need(1);
+                    byte[] address = new byte[buffer.get() & 0xFF];
+                    getBytes(address);
+                    String playerId = getString();
+                    try {
+                        store.put(InetAddress.getByAddress(address), playerId);
+                        addresses++;
+                    } catch (UnknownHostException e) {
+                        plugin.getLogQueue().log(Level.WARNING,
+                                "invalid imported addresses",
+                                "Invalid address imported for " + playerId);
+                    }
+                } else if (type == PLAYER) {
+                    String playerId = getString();
+                    String hash = getString();
+                    if (!playerId.isEmpty() && SkinIndex.isHash(hash)) {
+                        plugin.getConf().referenceSkin(playerId, hash);
+                        players++;
+                    }
+                } else if (type == SKIN || type == ICON) {
+                    final boolean icon = type == ICON;
+                    final String hash = getString();
+                    need(4);
+                    int length = buffer.getInt();
+                    if (!SkinIndex.isHash(hash) || length < 0
+                            || length > MAX_IMAGE) {
+                        throw new IOException("Corrupt image record");
+                    }
+                    final int permits = (length >> 10) + 1;
+                    pending.acquire(permits);
+                    final byte[] data = new byte[length];
+                    getBytes(data);
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                validate(icon, hash, data);
+                            } finally {
+                                pending.release(permits);
+                            }
+                        }
+                    });
+                } else {
+                    throw new IOException("Unknown record type " + type);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } finally {
+            in.close();
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        store.synchronize();
+        index.synchronize();
+    }
+    
+    /**
+     * Decode an imported image and store it if it is valid. A skin must hash
+     * to the name it was exported under, and an icon must be 64x64.
+     * 
+     * @param icon
+     *            Whether the image is an icon rather than a skin
+     * @param hash
+     *            Hash of the skin
+     * @param data
+     *            PNG data
+     */
+    private void validate(boolean icon, String hash, byte[] data) {
+        BufferedImage image = null;
+        try {
+            image = ImageIO.read(new ByteArrayInputStream(data));
+        } catch (IOException e) {
+            image = null;
+        }
+        boolean valid = image != null;
+        if (valid && icon) {
+            valid = image.getWidth() == 64 && image.getHeight() == 64;
+        } else if (valid) {
+            valid = hash.equals(SkinIndex.hashOf(image));
+        }
+        if (!valid) {
+            rejected.incrementAndGet();
+        } else if (plugin.getConf().saveEncoded(hash, data, icon)) {
+            if (icon) {
+                icons.incrementAndGet();
+                plugin.getConf().getIconCache().refresh(hash);
+            } else {
+                skins.incrementAndGet();
+            }
+        }
+    }
+    
+    /**
+     * Write the current state to the archive by way of a temporary file, so an
+     * interrupted export never leaves a truncated archive behind.
+     * 
+     * @throws IOException
+     */
+    private void write() throws IOException {
+        Conf conf = plugin.getConf();
+        File temp = AtomicFile.createTemp(file);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            channel = out.getChannel();
+            buffer.clear();
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            for (Entry<InetAddress, String> entry : plugin.getAddressStore()
+                    .getMap().entrySet()) {
+                byte[] address = entry.getKey().getAddress();
+                ensure(2 + address.length);
+                buffer.put(ADDRESS);
+                buffer.put((byte) address.length);
+                buffer.put(address);
+                putString(entry.getValue());
+                addresses++;
+            }
+            for (Entry<String, String> entry : conf.getSkinIndex().getMap()
+                    .entrySet()) {
+                ensure(1);
+                buffer.put(PLAYER);
+                putString(entry.getKey());
+                putString(entry.getValue());
+                players++;
+            }
+            for (String hash : conf.getSkinHashes()) {
+                if (putImage(SKIN, hash, conf.getSkinFile(hash))) {
+                    skins.incrementAndGet();
+                }
+                if (putImage(ICON, hash, conf.getIconFile(hash))) {
+                    icons.incrementAndGet();
+                }
+            }
+            ensure(1);
+            buffer.put(END);
+            flush();
+            channel.force(false);
+        } catch (IOException e) {
+            out.close();
+            temp.delete();
+            throw e;
+        } finally {
+            out.close();
+        }
+        AtomicFile.replace(temp, file);
+    }
+    
+}
@@ -0,0 +1,75 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Skin provider that downloads skins from a URL template, in which
+ * "{PLAYERNAME}" is replaced with the player's name.
+ */
+public class UrlSkinProvider implements SkinProvider {
+    
+    private String template;
+    private int timeout;
+    
+    /**
+     * @param template
+     *            URL template
+     * @param timeout
+     *            Milliseconds to wait for connecting and for each read
+     */
+    public UrlSkinProvider(String template, int timeout) {
+        this.template = template;
+        this.timeout = timeout;
+    }
+    
+    @Override
+    public String getName() {
+        return template;
+    }
+    
+    @Override
+    public BufferedImage getSkin(String playerId) throws IOException {
+        URLConnection connection = new URL(template.replace("{PLAYERNAME}",
+                playerId)).openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        if (connection instanceof HttpURLConnection) {
+            int code = ((HttpURLConnection) connection).getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_FOUND
+                    || code == HttpURLConnection.HTTP_FORBIDDEN) {
+                return null;
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + code);
+            }
+        }
+        InputStream in = connection.getInputStream();
+        try {
+            return ImageIO.read(in);
+        } finally {
+            in.close();
+        }
+    }
+    
+}
@@ -0,0 +1,160 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs two address stores sharing one folder, as two servers would, and
+ * checks that neither loses the other's mappings. A file lock is held by the
+ * whole process, so two stores in one process cannot both take it, and their
+ * synchronizations are serialized here as the lock would between servers.
+ */
+public class AddressStoreTest {
+    
+    private static final int ADDRESSES = 200;
+    
+    /* Stands in for the file lock between the two stores */
+    private final Object fileLock = new Object();
+    
+    private StubServer stub;
+    private PluginFixture fixture;
+    private File folder;
+    
+    /**
+     * @param i
+     *            Number of the address
+     * @return An IPv4 address for even numbers and an IPv6 one for odd ones
+     * @throws Exception
+     */
+    private static InetAddress address(int i) throws Exception {
+        return InetAddress.getByName(i % 2 == 0 ? "10.1." + (i / 256) + "."
+                + (i % 256) : "2001:db8:1::" + Integer.toHexString(i));
+    }
+    
+    /**
+     * @param store
+     *            Store to fill
+     * @param name
+     *            Name mapped to every address
+     * @param sync
+     *            Whether to synchronize the store after each mapping
+     * @return Thread storing a mapping for every address
+     */
+    private Thread fill(final AddressStore store, final String name,
+            final boolean sync) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < ADDRESSES; i++) {
+                        store.put(address(i), name + i);
+                        if (sync) {
+                            synchronized (fileLock) {
+                                store.synchronize();
+                            }
+                        }
+                    }
+                } catch (Throwable t) {
+                    stub.recordFailure(t);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        stub = StubServer.get();
+        stub.clearFailures();
+        fixture = new PluginFixture(stub);
+        folder = fixture.getDataFolder();
+    }
+    
+    @After
+    public void tearDown() {
+        fixture.delete();
+    }
+    
+    /**
+     * Each store maps every address, one while synchronizing after each
+     * mapping and the other only at the end. Whichever wrote an address last
+     * wins, and both must agree on the result.
+     */
+    @Test
+    public void sharedFolderMergesBothServers() throws Exception {
+        AddressStore first = new AddressStore(fixture.newPlugin(), folder);
+        AddressStore second = new AddressStore(fixture.newPlugin(), folder);
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add(fill(first, "first", true));
+        threads.add(fill(second, "second", false));
+        threads.add(fill(second, "second", true));
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(stub.getFailures().toString(), stub.getFailures()
+                .isEmpty());
+        second.synchronize();
+        first.synchronize();
+        second.synchronize();
+        
+        AddressStore fresh = new AddressStore(fixture.newPlugin(), folder);
+        Map<InetAddress, String> stored = fresh.getMap();
+        assertEquals(ADDRESSES, stored.size());
+        assertEquals(stored, first.getMap());
+        assertEquals(stored, second.getMap());
+        for (int i = 0; i < ADDRESSES; i++) {
+            String name = stored.get(address(i));
+            assertTrue(name, name.equals("first" + i)
+                    || name.equals("second" + i));
+        }
+    }
+    
+    /**
+     * Mappings written by one store are picked up by the other, IPv6
+     * addresses included.
+     */
+    @Test
+    public void mappingsReachTheOtherServer() throws Exception {
+        AddressStore first = new AddressStore(fixture.newPlugin(), folder);
+        AddressStore second = new AddressStore(fixture.newPlugin(), folder);
+        for (int i = 0; i < ADDRESSES; i++) {
+            first.put(address(i), "player" + i);
+            if (i % 10 == 0) {
+                first.synchronize();
+                second.synchronize();
+            }
+        }
+        first.synchronize();
+        second.synchronize();
+        for (int i = 0; i < ADDRESSES; i++) {
+            assertEquals("player" + i, second.get(address(i)));
+            assertTrue(second.getAddresses("player" + i).contains(address(i)));
+        }
+    }
+    
+}
@@ -0,0 +1,377 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.easymfne.personalmotd.PluginFixture.TestPlugin;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.entity.PlayerDeathEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.inventory.ItemStack;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs logins and pings on many threads while deaths, commands, and reloads
+ * happen on the main thread, then checks that nothing was thrown, that no
+ * ping saw a half-applied reload, and that no mapping was lost.
+ */
+public class ConcurrencyStressTest {
+    
+    /* Milliseconds the stress lasts, which may be raised for soak runs */
+    private static final long DURATION = Long.getLong(
+            "personalmotd.stress-millis", 3000L);
+    
+    private static final int PLAYERS = 40;
+    private static final int LOGIN_THREADS = 4;
+    private static final int PING_THREADS = 4;
+    
+    /* Server MOTD with a placeholder for each configuration */
+    private static final String MOTD = "Hi {A}{B}";
+    
+    private static final String[] COMMANDS = { "addresses", "addresses 2",
+            "addresses Player3", "addresses 10.0.", "addresses 2001:",
+            "cache", "pings", "export stress", "import stress" };
+    
+    private StubServer stub;
+    private PluginFixture fixture;
+    private TestPlugin plugin;
+    
+    private String[] names;
+    private InetAddress[] addresses;
+    private Player[] players;
+    
+    private final Set<Integer> loggedIn = Collections
+            .newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final Set<Integer> online = Collections
+            .newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+    private final AtomicLong pings = new AtomicLong();
+    
+    /**
+     * Check a condition on a worker thread, recording a failure if it does not
+     * hold, since an assertion thrown there would go unnoticed.
+     * 
+     * @param condition
+     *            Condition that should hold
+     * @param message
+     *            Description of the failure
+     */
+    private void check(boolean condition, String message) {
+        if (!condition) {
+            stub.recordFailure(new AssertionError(message));
+        }
+    }
+    
+    /**
+     * Check that no failures were recorded.
+     */
+    private void checkFailures() {
+        List<String> failures = stub.getFailures();
+        assertTrue(failures.size() + " failures, first: "
+                + (failures.isEmpty() ? "" : failures.get(0)),
+                failures.isEmpty());
+    }
+    
+    /**
+     * Write the configuration for a variant. Even and odd variants use
+     * different placeholders and default names, so that a ping handled during
+     * a reload can be told apart, and the icon mode cycles through every mode.
+     * 
+     * @param variant
+     *            Number of the variant
+     * @throws Exception
+     */
+    private void configure(int variant) throws Exception {
+        IconMode mode = IconMode.values()[variant % IconMode.values().length];
+        fixture.writeConfig(variant % 2 == 0 ? "{A}" : "{B}",
+                variant % 2 == 0 ? "GuestA" : "GuestB", mode,
+                "icon-cache:\n  memory: 64\nping-limit:\n  per-address:\n"
+                        + "    rate: 50\n    burst: 50\n  global:\n"
+                        + "    rate: 0\n");
+    }
+    
+    /**
+     * Handle a login by a player, from the thread calling this method, then
+     * have them join on the main thread.
+     * 
+     * @param listener
+     *            Listener of the plugin
+     * @param i
+     *            Index of the player
+     * @throws Exception
+     */
+    @SuppressWarnings("deprecation")
+    private void login(final EventListener listener, final int i)
+            throws Exception {
+        listener.onAsyncPlayerPreLogin(new AsyncPlayerPreLoginEvent(names[i],
+                addresses[i]));
+        loggedIn.add(i);
+        stub.callSync(new Callable<Void>() {
+            @Override
+            public Void call() {
+                listener.onPlayerJoin(new PlayerJoinEvent(players[i], null));
+                online.add(i);
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Have a player leave on the main thread.
+     * 
+     * @param listener
+     *            Listener of the plugin
+     * @param i
+     *            Index of the player
+     * @throws Exception
+     */
+    private void quit(final EventListener listener, final int i)
+            throws Exception {
+        stub.callSync(new Callable<Void>() {
+            @Override
+            public Void call() {
+                online.remove(i);
+                listener.onPlayerQuit(new PlayerQuitEvent(players[i], null));
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Ping from a player's address and check the response.
+     * 
+     * @param listener
+     *            Listener of the plugin
+     * @param i
+     *            Index of the player
+     */
+    private void ping(EventListener listener, int i) {
+        List<Player> list = new ArrayList<Player>();
+        for (int j : online) {
+            list.add(players[j]);
+        }
+        StubServer.Ping ping = new StubServer.Ping(addresses[i], MOTD, list);
+        listener.onServerListPing(ping);
+        pings.incrementAndGet();
+        String motd = ping.getMotd();
+        check(motd.equals("Hi " + names[i] + "{B}")
+                || motd.equals("Hi GuestA{B}")
+                || motd.equals("Hi {A}" + names[i])
+                || motd.equals("Hi {A}GuestB"), "Torn or wrong MOTD for "
+                + names[i] + ": " + motd);
+        check(ping.getIcon() != null, "No icon for " + names[i]);
+    }
+    
+    /**
+     * Run an action repeatedly on a new thread until the deadline, recording
+     * anything it throws.
+     * 
+     * @param name
+     *            Name of the thread
+     * @param deadline
+     *            Time at which to stop
+     * @param action
+     *            Action to repeat
+     * @return The started thread
+     */
+    private Thread repeat(String name, final long deadline,
+            final Callable<Void> action) {
+        Thread thread = new Thread(name) {
+            @Override
+            public void run() {
+                try {
+                    while (System.currentTimeMillis() < deadline) {
+                        action.call();
+                    }
+                } catch (Throwable t) {
+                    stub.recordFailure(t);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        stub = StubServer.get();
+        stub.clearFailures();
+        stub.setMotd(MOTD);
+        fixture = new PluginFixture(stub);
+        names = new String[PLAYERS];
+        addresses = new InetAddress[PLAYERS];
+        players = new Player[PLAYERS];
+        for (int i = 0; i < PLAYERS; i++) {
+            names[i] = "Player" + i;
+            addresses[i] = InetAddress.getByName(i % 2 == 0 ? "10.0.0." + i
+                    : "2001:db8::" + Integer.toHexString(i));
+            players[i] = stub.newPlayer(names[i]);
+            fixture.addSkin(names[i]);
+        }
+        configure(0);
+        plugin = fixture.newPlugin();
+        plugin.enable();
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        if (plugin.isEnabled()) {
+            plugin.disable();
+        }
+        stub.awaitTasks(10000L);
+        fixture.delete();
+    }
+    
+    /**
+     * Logins and pings from many threads, while deaths, commands, and reloads
+     * happen on the main thread.
+     */
+    @Test
+    public void concurrentEventsKeepStateConsistent() throws Exception {
+        final EventListener listener = stub.getListener(plugin);
+        final long deadline = System.currentTimeMillis() + DURATION;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < LOGIN_THREADS; t++) {
+            threads.add(repeat("Login " + t, deadline, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    int i = ThreadLocalRandom.current().nextInt(PLAYERS);
+                    if (online.contains(i)) {
+                        quit(listener, i);
+                    } else {
+                        login(listener, i);
+                    }
+                    Thread.sleep(1L);
+                    return null;
+                }
+            }));
+        }
+        for (int t = 0; t < PING_THREADS; t++) {
+            threads.add(repeat("Ping " + t, deadline, new Callable<Void>() {
+                @Override
+                public Void call() {
+                    ping(listener,
+                            ThreadLocalRandom.current().nextInt(PLAYERS));
+                    return null;
+                }
+            }));
+        }
+        final List<String> messages = Collections
+                .synchronizedList(new ArrayList<String>());
+        int reloads = 0;
+        for (int step = 0; System.currentTimeMillis() < deadline; step++) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (step % 10 == 0) {
+                configure(++reloads);
+                if (random.nextBoolean()) {
+                    stub.dispatch(stub.newSender(messages), "reload");
+                } else {
+                    stub.callSync(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            plugin.reload();
+                            return null;
+                        }
+                    });
+                }
+            } else if (random.nextBoolean()) {
+                final Player player = players[random.nextInt(PLAYERS)];
+                stub.callSync(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        listener.onPlayerDeath(new PlayerDeathEvent(player,
+                                new ArrayList<ItemStack>(), 0, null));
+                        return null;
+                    }
+                });
+            } else {
+                stub.dispatch(stub.newSender(messages),
+                        COMMANDS[random.nextInt(COMMANDS.length)]);
+            }
+            Thread.sleep(5L);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue("Tasks did not finish", stub.awaitTasks(30000L));
+        checkFailures();
+        assertTrue("No reloads happened", reloads > 0);
+        assertTrue("No pings happened", pings.get() > 0);
+        
+        PingLimiter limiter = plugin.getConf().getPingLimiter();
+        assertEquals("Pings counted", pings.get(), limiter.getServed()
+                + limiter.getShed());
+        AddressStore store = plugin.getAddressStore();
+        assertEquals("Mappings stored", loggedIn.size(), store.size());
+        assertEquals("Mappings listed", loggedIn.size(), store
+                .getByPrefix("").size());
+        for (int i : loggedIn) {
+            assertEquals(names[i], store.get(addresses[i]));
+            assertTrue(names[i] + " addresses", store.getAddresses(names[i])
+                    .contains(addresses[i]));
+            assertEquals(names[i], store.getByPrefix("").get(
+                    addresses[i].getHostAddress()));
+            assertNotNull(names[i] + " icon", plugin.getConf()
+                    .getPersonalizedIcon(names[i]));
+        }
+    }
+    
+    /**
+     * Disabling while logins are still being handled in the background, then
+     * enabling again, loses no mappings and throws nothing.
+     */
+    @Test
+    public void disableDuringLoginsKeepsMappings() throws Exception {
+        EventListener listener = stub.getListener(plugin);
+        for (int i = 0; i < PLAYERS; i++) {
+            login(listener, i);
+        }
+        plugin.disable();
+        assertTrue("Tasks did not finish", stub.awaitTasks(30000L));
+        checkFailures();
+        
+        plugin = fixture.newPlugin();
+        plugin.enable();
+        AddressStore store = plugin.getAddressStore();
+        assertEquals("Mappings stored", PLAYERS, store.size());
+        for (int i = 0; i < PLAYERS; i++) {
+            assertEquals(names[i], store.get(addresses[i]));
+        }
+        listener = stub.getListener(plugin);
+        for (int i = 0; i < PLAYERS; i++) {
+            ping(listener, i);
+        }
+        assertTrue("Tasks did not finish", stub.awaitTasks(30000L));
+        checkFailures();
+    }
+    
+}
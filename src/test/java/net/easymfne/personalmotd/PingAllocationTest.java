@@ -0,0 +1,237 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import net.easymfne.personalmotd.PluginFixture.TestPlugin;
+
+import org.bukkit.entity.Player;
+import org.bukkit.event.entity.PlayerDeathEvent;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.util.CachedServerIcon;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures the bytes allocated by the ping handler in each icon mode, once
+ * warmed up, and fails if the average per ping exceeds the budget given by
+ * the "personalmotd.ping-allocation-budget" system property.
+ */
+public class PingAllocationTest {
+    
+    /* Bytes a ping may allocate on average */
+    private static final long BUDGET = Long.getLong(
+            "personalmotd.ping-allocation-budget", 64L);
+    
+    /* Pings handled before measuring, so that everything is compiled */
+    private static final int WARM_UP = 100000;
+    
+    /* Pings measured */
+    private static final int MEASURED = 100000;
+    
+    private static final String MOTD = "Welcome {PLAYER}!";
+    private static final String NAME = "Pinger";
+    
+    private com.sun.management.ThreadMXBean threads;
+    private StubServer stub;
+    private PluginFixture fixture;
+    private TestPlugin plugin;
+    private InetAddress address;
+    
+    /**
+     * @return Bytes allocated by the current thread so far
+     */
+    private long allocated() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    
+    /**
+     * Switch the plugin to an icon mode by reloading its configuration.
+     * 
+     * @param mode
+     *            Icon mode to use
+     * @param extra
+     *            Further settings
+     * @throws Exception
+     */
+    private void configure(IconMode mode, String extra) throws Exception {
+        fixture.writeConfig("{PLAYER}", "Guest", mode, extra);
+        stub.callSync(new Callable<Void>() {
+            @Override
+            public Void call() {
+                plugin.reload();
+                return null;
+            }
+        });
+        assertEquals(mode, plugin.getConf().getIconMode());
+    }
+    
+    /**
+     * Handle pings from the player's address with a single event, as the
+     * allocations of the event itself belong to the server.
+     * 
+     * @param ping
+     *            Event to handle
+     * @param count
+     *            Number of pings
+     * @return Average bytes allocated per ping
+     */
+    private long measure(StubServer.Ping ping, int count) {
+        EventListener listener = stub.getListener(plugin);
+        for (int i = 0; i < WARM_UP; i++) {
+            ping.reset(MOTD);
+            listener.onServerListPing(ping);
+        }
+        long before = allocated();
+        for (int i = 0; i < count; i++) {
+            ping.reset(MOTD);
+            listener.onServerListPing(ping);
+        }
+        return (allocated() - before) / count;
+    }
+    
+    /**
+     * Measure pings in an icon mode and check them against the budget.
+     * 
+     * @param mode
+     *            Icon mode to use
+     * @param personalized
+     *            Whether the ping should be given the player's icon
+     * @throws Exception
+     */
+    private void checkMode(IconMode mode, boolean personalized)
+            throws Exception {
+        configure(mode, "ping-limit:\n  per-address:\n    rate: 0\n"
+                + "  global:\n    rate: 0\n");
+        List<Player> online = Collections.singletonList(stub.newPlayer(NAME));
+        StubServer.Ping ping = new StubServer.Ping(address, MOTD, online);
+        stub.getListener(plugin).onServerListPing(ping);
+        assertEquals("Welcome " + NAME + "!", ping.getMotd());
+        CachedServerIcon icon = ping.getIcon();
+        assertNotNull(icon);
+        assertEquals(mode + " personalized", personalized, icon != plugin
+                .getConf().getDefaultIcon());
+        
+        long perPing = measure(ping, MEASURED);
+        assertTrue(mode + " allocated " + perPing + " bytes per ping, over "
+                + "the budget of " + BUDGET, perPing <= BUDGET);
+    }
+    
+    @Before
+    @SuppressWarnings("deprecation")
+    public void setUp() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean()
+                instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        
+        stub = StubServer.get();
+        stub.clearFailures();
+        stub.setMotd(MOTD);
+        fixture = new PluginFixture(stub);
+        fixture.addSkin(NAME);
+        fixture.writeConfig("{PLAYER}", "Guest", IconMode.PLAYER, "");
+        plugin = fixture.newPlugin();
+        plugin.enable();
+        address = InetAddress.getByName("2001:db8::1");
+        
+        final EventListener listener = stub.getListener(plugin);
+        final Player player = stub.newPlayer(NAME);
+        listener.onAsyncPlayerPreLogin(new AsyncPlayerPreLoginEvent(NAME,
+                address));
+        stub.callSync(new Callable<Void>() {
+            @Override
+            public Void call() {
+                listener.onPlayerJoin(new PlayerJoinEvent(player, null));
+                listener.onPlayerDeath(new PlayerDeathEvent(player,
+                        new ArrayList<ItemStack>(), 0, null));
+                return null;
+            }
+        });
+        assertTrue("Icon was not generated", stub.awaitTasks(30000L));
+        assertNotNull(plugin.getConf().getPersonalizedIcon(NAME));
+    }
+    
+    @After
+    public void tearDown() throws Exception {
+        if (plugin != null && plugin.isEnabled()) {
+            plugin.disable();
+        }
+        if (stub != null) {
+            stub.awaitTasks(10000L);
+            assertTrue(stub.getFailures().toString(), stub.getFailures()
+                    .isEmpty());
+        }
+        if (fixture != null) {
+            fixture.delete();
+        }
+    }
+    
+    @Test
+    public void deathModeStaysWithinBudget() throws Exception {
+        checkMode(IconMode.DEATH, true);
+    }
+    
+    /**
+     * Nobody has been deathbanned, so the default icon is given.
+     */
+    @Test
+    public void deathBanModeStaysWithinBudget() throws Exception {
+        checkMode(IconMode.DEATHBAN, false);
+    }
+    
+    @Test
+    public void playerModeStaysWithinBudget() throws Exception {
+        checkMode(IconMode.PLAYER, true);
+    }
+    
+    @Test
+    public void randomModeStaysWithinBudget() throws Exception {
+        checkMode(IconMode.RANDOM, true);
+    }
+    
+    /**
+     * Pings beyond the limits are given the default response.
+     */
+    @Test
+    public void shedPingsStayWithinBudget() throws Exception {
+        configure(IconMode.PLAYER, "ping-limit:\n  per-address:\n"
+                + "    rate: 1\n    burst: 1\n");
+        List<Player> online = Collections.emptyList();
+        StubServer.Ping ping = new StubServer.Ping(address, MOTD, online);
+        long perPing = measure(ping, MEASURED);
+        assertTrue("Pings were not shed", plugin.getConf().getPingLimiter()
+                .getShed() > 0);
+        assertTrue("Shed pings allocated " + perPing + " bytes per ping, "
+                + "over the budget of " + BUDGET, perPing <= BUDGET);
+    }
+    
+}
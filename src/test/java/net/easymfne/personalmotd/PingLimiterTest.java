@@ -0,0 +1,125 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Hammers the ping limiter from many threads and checks that the pings it
+ * allowed never exceed what its buckets could hold and refill, and that every
+ * ping was counted exactly once.
+ */
+public class PingLimiterTest {
+    
+    private static final int THREADS = 8;
+    private static final long DURATION = 500L;
+    
+    /**
+     * Ping from every thread until the duration has passed.
+     * 
+     * @param limiter
+     *            Limiter to ping
+     * @param addresses
+     *            Addresses to ping from, one picked per ping in turn
+     * @return Number of pings allowed, followed by the number attempted
+     * @throws Exception
+     */
+    private long[] hammer(final PingLimiter limiter,
+            final InetAddress[] addresses) throws Exception {
+        final AtomicLong allowed = new AtomicLong();
+        final AtomicLong attempted = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final long deadline = System.currentTimeMillis() + DURATION;
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long ok = 0;
+                    long count = 0;
+                    while (System.currentTimeMillis() < deadline) {
+                        if (limiter.tryAcquire(addresses[(int) (count
+                                % addresses.length)])) {
+                            ok++;
+                        }
+                        count++;
+                    }
+                    allowed.addAndGet(ok);
+                    attempted.addAndGet(count);
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return new long[] { allowed.get(), attempted.get() };
+    }
+    
+    @Test
+    public void perAddressLimitHolds() throws Exception {
+        long start = System.currentTimeMillis();
+        PingLimiter limiter = new PingLimiter(64, 100, 20, 0, 1);
+        long[] result = hammer(limiter, new InetAddress[] { InetAddress
+                .getByName("10.0.0.1") });
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Allowed " + result[0] + " in " + elapsed + "ms",
+                result[0] <= 20 + 100 * elapsed / 1000 + 1);
+        assertTrue("Allowed only " + result[0], result[0] >= 20);
+        assertEquals(result[0], limiter.getServed());
+        assertEquals(result[1], limiter.getServed() + limiter.getShed());
+    }
+    
+    @Test
+    public void globalLimitHolds() throws Exception {
+        InetAddress[] addresses = new InetAddress[50];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = InetAddress.getByName(i % 2 == 0 ? "10.0.1." + i
+                    : "2001:db8::" + Integer.toHexString(i));
+        }
+        long start = System.currentTimeMillis();
+        PingLimiter limiter = new PingLimiter(4096, 0, 1, 1000, 100);
+        long[] result = hammer(limiter, addresses);
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Allowed " + result[0] + " in " + elapsed + "ms",
+                result[0] <= 100 + 1000 * elapsed / 1000 + 1);
+        assertTrue("Allowed only " + result[0], result[0] >= 100);
+        assertEquals(result[0], limiter.getServed());
+        assertEquals(result[1], limiter.getServed() + limiter.getShed());
+    }
+    
+    @Test
+    public void unlimitedAllowsEverything() throws Exception {
+        PingLimiter limiter = new PingLimiter(16, 0, 1, 0, 1);
+        long[] result = hammer(limiter, new InetAddress[] { InetAddress
+                .getByName("::1") });
+        assertEquals(result[1], result[0]);
+        assertEquals(0L, limiter.getShed());
+    }
+    
+}
@@ -0,0 +1,234 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import javax.imageio.ImageIO;
+
+import org.bukkit.plugin.PluginDescriptionFile;
+
+/**
+ * A server folder holding the plugin's data folder, a base icon, and a folder
+ * of player skins read by the plugin as a skin source.
+ */
+public class PluginFixture {
+    
+    /**
+     * The plugin, loaded outside of a server's plugin loader.
+     */
+    public static class TestPlugin extends PersonalMotd {
+        
+        private final StubServer stub;
+        
+        /**
+         * @param stub
+         *            Server to run on
+         * @param dataFolder
+         *            Data folder of the plugin
+         */
+        TestPlugin(StubServer stub, File dataFolder) {
+            super(null, stub.getServer(), new PluginDescriptionFile(
+                    "PersonalMotd", "test", PersonalMotd.class.getName()),
+                    dataFolder, new File(dataFolder.getParentFile(),
+                            "PersonalMotd.jar"));
+            this.stub = stub;
+            stub.registerCommand(this, "personalmotd");
+        }
+        
+        /**
+         * Disable the plugin on the main thread, then cancel its tasks and
+         * forget its listener, as the server does.
+         * 
+         * @throws Exception
+         */
+        public void disable() throws Exception {
+            stub.callSync(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    setEnabled(false);
+                    stub.unregister(TestPlugin.this);
+                    return null;
+                }
+            });
+        }
+        
+        /**
+         * Enable the plugin on the main thread.
+         * 
+         * @throws Exception
+         */
+        public void enable() throws Exception {
+            stub.callSync(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    setEnabled(true);
+                    return null;
+                }
+            });
+        }
+        
+    }
+    
+    private final StubServer stub;
+    private final File root;
+    private final File dataFolder;
+    private final File skinFolder;
+    private final File baseIcon;
+    
+    /**
+     * Create the folders in a new temporary folder, with a base icon and a
+     * Metrics configuration that opts out of reporting.
+     * 
+     * @param stub
+     *            Server the plugin will run on
+     * @throws IOException
+     */
+    public PluginFixture(StubServer stub) throws IOException {
+        this.stub = stub;
+        root = Files.createTempDirectory("personalmotd").toFile();
+        dataFolder = new File(new File(root, "plugins"), "PersonalMotd");
+        skinFolder = new File(root, "skins");
+        baseIcon = new File(root, "server-icon.png");
+        dataFolder.mkdirs();
+        skinFolder.mkdirs();
+        write(new File(new File(dataFolder.getParentFile(), "PluginMetrics"),
+                "config.yml"), "opt-out: true\nguid: test\n");
+        ImageIO.write(image(64, 64, 0L), "png", baseIcon);
+    }
+    
+    /**
+     * Write a skin for a player, with colors depending on the name.
+     * 
+     * @param playerId
+     *            Name of the player
+     * @throws IOException
+     */
+    public void addSkin(String playerId) throws IOException {
+        ImageIO.write(image(64, 32, playerId.hashCode()), "png", new File(
+                skinFolder, playerId + ".png"));
+    }
+    
+    /**
+     * Delete everything written by the fixture and the plugins using it.
+     */
+    public void delete() {
+        delete(root);
+    }
+    
+    /**
+     * @param file
+     *            File or folder to delete with all its contents
+     */
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        for (int i = 0; children != null && i < children.length; i++) {
+            delete(children[i]);
+        }
+        file.delete();
+    }
+    
+    /**
+     * @return Data folder of the plugin
+     */
+    public File getDataFolder() {
+        return dataFolder;
+    }
+    
+    /**
+     * @param width
+     *            Width in pixels
+     * @param height
+     *            Height in pixels
+     * @param seed
+     *            Seed of the colors
+     * @return Image of random opaque colors
+     */
+    private static BufferedImage image(int width, int height, long seed) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, 0xFF000000 | random.nextInt(0x1000000));
+            }
+        }
+        return image;
+    }
+    
+    /**
+     * @return A new instance of the plugin, not yet enabled
+     */
+    public TestPlugin newPlugin() {
+        return new TestPlugin(stub, dataFolder);
+    }
+    
+    /**
+     * @param file
+     *            File to write, replaced in one step
+     * @param text
+     *            Contents of the file
+     * @throws IOException
+     */
+    private static void write(File file, String text) throws IOException {
+        file.getParentFile().mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp),
+                "UTF-8");
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Unable to replace " + file.getPath());
+        }
+    }
+    
+    /**
+     * Write the plugin's configuration, reading skins from the fixture and
+     * synchronizing the storage folder every second.
+     * 
+     * @param placeholder
+     *            Name tag placeholder
+     * @param defaultName
+     *            Name used when the player is unknown
+     * @param iconMode
+     *            Icon selection mode
+     * @param extra
+     *            Further settings, each on its own line
+     * @throws IOException
+     */
+    public void writeConfig(String placeholder, String defaultName,
+            IconMode iconMode, String extra) throws IOException {
+        write(new File(dataFolder, "config.yml"), "name-tag-placeholder: '"
+                + placeholder + "'\n" + "name-tag-default: '" + defaultName
+                + "'\n" + "icon-mode: " + iconMode + "\n" + "base-icon: '"
+                + baseIcon.getAbsolutePath() + "'\n" + "skin-sources:\n"
+                + "- '" + skinFolder.getAbsolutePath() + File.separator
+                + "{PLAYERNAME}.png'\n" + "storage-sync-interval: 1\n"
+                + "watch-config: false\n" + "logging:\n"
+                + "  verbosity: QUIET\n" + extra);
+    }
+    
+}
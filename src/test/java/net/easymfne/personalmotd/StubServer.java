@@ -0,0 +1,685 @@
+/*
+ * This file is part of the PersonalMotd plugin by EasyMFnE.
+ * 
+ * PersonalMotd is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or any later version.
+ * 
+ * PersonalMotd is distributed in the hope that it will be useful, but without
+ * any warranty; without even the implied warranty of merchantability or fitness
+ * for a particular purpose. See the GNU General Public License for details.
+ * 
+ * You should have received a copy of the GNU General Public License v3 along
+ * with PersonalMotd. If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.easymfne.personalmotd;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.PluginCommand;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Listener;
+import org.bukkit.event.server.ServerListPingEvent;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+import org.bukkit.util.CachedServerIcon;
+
+/**
+ * Stand-in for the Bukkit server, so the plugin can be run by tests. The main
+ * thread is a single-threaded executor and asynchronous tasks run on a pool.
+ * Asynchronous timers start a new run every period whether or not the last
+ * one has finished, as on a real server. Anything thrown by a task is kept
+ * for the test to check.
+ */
+public class StubServer {
+    
+    /**
+     * Server list ping that keeps the icon it was given and lists the players
+     * online when it was created.
+     */
+    public static class Ping extends ServerListPingEvent {
+        
+        private final List<Player> players;
+        private CachedServerIcon icon;
+        
+        /**
+         * @param address
+         *            Address of the pinging client
+         * @param motd
+         *            Server MOTD
+         * @param players
+         *            Players online
+         */
+        public Ping(InetAddress address, String motd, List<Player> players) {
+            super(address, motd, players.size(), 100);
+            this.players = players;
+        }
+        
+        /**
+         * @return Icon given to the ping, or null if none
+         */
+        public CachedServerIcon getIcon() {
+            return icon;
+        }
+        
+        @Override
+        public Iterator<Player> iterator() {
+            return players.iterator();
+        }
+        
+        /**
+         * Prepare the ping for being handled again.
+         * 
+         * @param motd
+         *            Server MOTD
+         */
+        public void reset(String motd) {
+            setMotd(motd);
+            icon = null;
+        }
+        
+        @Override
+        public void setServerIcon(CachedServerIcon icon) {
+            this.icon = icon;
+        }
+        
+    }
+    
+    /**
+     * Command registered for a plugin, which may only be created by a
+     * subclass.
+     */
+    private static class StubCommand extends PluginCommand {
+        
+        StubCommand(String name, Plugin owner) {
+            super(name, owner);
+        }
+        
+    }
+    
+    /**
+     * A scheduled task, which is only ever marked as cancelled so that a run
+     * already in progress finishes.
+     */
+    private class Task implements Runnable {
+        
+        private final int id;
+        private final Plugin owner;
+        private final Runnable runnable;
+        private final boolean sync;
+        private volatile Future<?> timer;
+        private volatile boolean cancelled;
+        
+        Task(Plugin owner, Runnable runnable, boolean sync) {
+            this.id = nextId.incrementAndGet();
+            this.owner = owner;
+            this.runnable = runnable;
+            this.sync = sync;
+        }
+        
+        void cancel() {
+            cancelled = true;
+            tasks.remove(id);
+            if (timer != null) {
+                timer.cancel(false);
+            }
+        }
+        
+        /**
+         * Submit a single run of the task, which is counted as pending until
+         * it has finished.
+         */
+        void execute() {
+            pending.incrementAndGet();
+            (sync ? main : async).execute(this);
+        }
+        
+        @Override
+        public void run() {
+            try {
+                if (!cancelled) {
+                    runnable.run();
+                }
+            } catch (Throwable t) {
+                failures.add(t);
+            } finally {
+                if (timer == null) {
+                    tasks.remove(id);
+                }
+                pending.decrementAndGet();
+            }
+        }
+        
+    }
+    
+    /* Milliseconds per server tick */
+    private static final long TICK = 50L;
+    
+    private static StubServer instance = null;
+    
+    /**
+     * @return The server, which is created and handed to Bukkit the first
+     *         time, as Bukkit accepts only one
+     */
+    public static synchronized StubServer get() {
+        if (instance == null) {
+            instance = new StubServer();
+            Bukkit.setServer(instance.server);
+        }
+        return instance;
+    }
+    
+    /**
+     * @param type
+     *            Interface to implement
+     * @param handler
+     *            Handler of the interface's methods
+     * @return Proxy implementing the interface, and equal only to itself
+     */
+    private static <T> T proxy(Class<T> type, final InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(StubServer.class
+                .getClassLoader(), new Class<?>[] { type },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method,
+                            Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class) {
+                            if (method.getName().equals("equals")) {
+                                return proxy == args[0];
+                            }
+                            if (method.getName().equals("hashCode")) {
+                                return System.identityHashCode(proxy);
+                            }
+                            return "Stub"
+                                    + proxy.getClass().getInterfaces()[0]
+                                            .getSimpleName();
+                        }
+                        return handler.invoke(proxy, method, args);
+                    }
+                }));
+    }
+    
+    /**
+     * @param method
+     *            Method that was called
+     * @return Never returns
+     */
+    private static Object unsupported(Method method) {
+        throw new UnsupportedOperationException("Not stubbed: "
+                + method.getDeclaringClass().getSimpleName() + "."
+                + method.getName());
+    }
+    
+    /**
+     * @param name
+     *            Name for the threads
+     * @return Factory of daemon threads with the given name
+     */
+    private static ThreadFactory threads(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + " "
+                        + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+    
+    private final ExecutorService main = Executors
+            .newSingleThreadExecutor(threads("Server thread"));
+    private final ExecutorService async = Executors
+            .newCachedThreadPool(threads("Scheduler thread"));
+    private final ScheduledExecutorService timers = Executors
+            .newScheduledThreadPool(2, threads("Timer thread"));
+    
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ConcurrentMap<Integer, Task> tasks;
+    private final ConcurrentMap<Plugin, Listener> listeners;
+    private final ConcurrentMap<String, PluginCommand> commands;
+    private final List<Throwable> failures = Collections
+            .synchronizedList(new ArrayList<Throwable>());
+    private final List<String> severe = Collections
+            .synchronizedList(new ArrayList<String>());
+    
+    private volatile String motd = "A Minecraft Server";
+    
+    private final Logger logger;
+    private final CachedServerIcon serverIcon;
+    private final BukkitScheduler scheduler;
+    private final PluginManager pluginManager;
+    private final Server server;
+    
+    private StubServer() {
+        tasks = new ConcurrentHashMap<Integer, Task>();
+        listeners = new ConcurrentHashMap<Plugin, Listener>();
+        commands = new ConcurrentHashMap<String, PluginCommand>();
+        logger = Logger.getLogger("StubServer");
+        logger.setUseParentHandlers(Boolean
+                .getBoolean("personalmotd.verbose"));
+        logger.addHandler(new Handler() {
+            @Override
+            public void close() {
+            }
+            
+            @Override
+            public void flush() {
+            }
+            
+            @Override
+            public void publish(LogRecord record) {
+                if (record.getLevel().intValue() >= Level.SEVERE.intValue()) {
+                    severe.add(record.getMessage());
+                }
+            }
+        });
+        serverIcon = newIcon();
+        scheduler = proxy(BukkitScheduler.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return schedule(method, args);
+            }
+        });
+        pluginManager = proxy(PluginManager.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("registerEvents")) {
+                    listeners.put((Plugin) args[1], (Listener) args[0]);
+                    return null;
+                }
+                return unsupported(method);
+            }
+        });
+        server = proxy(Server.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Exception {
+                return serve(method, args);
+            }
+        });
+    }
+    
+    /**
+     * Wait for all tasks submitted so far, and any they submit in turn, to
+     * finish. Timers keep running.
+     * 
+     * @param timeout
+     *            Milliseconds to wait at most
+     * @return Whether the tasks finished in time
+     * @throws InterruptedException
+     */
+    public boolean awaitTasks(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (pending.get() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10L);
+        }
+        return true;
+    }
+    
+    /**
+     * Run something on the main thread and wait for its result.
+     * 
+     * @param callable
+     *            What to run
+     * @return Its result
+     * @throws Exception
+     *             Anything thrown by the callable
+     */
+    public <T> T callSync(Callable<T> callable) throws Exception {
+        Future<T> future = main.submit(callable);
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw (Exception) e.getCause();
+        }
+    }
+    
+    /**
+     * Forget everything recorded as thrown or logged as severe.
+     */
+    public void clearFailures() {
+        failures.clear();
+        severe.clear();
+    }
+    
+    /**
+     * Run a command on the main thread, as the server does.
+     * 
+     * @param sender
+     *            Sender of the command
+     * @param line
+     *            Command line, without the command name
+     * @return Whether the command was handled
+     * @throws Exception
+     */
+    public boolean dispatch(final CommandSender sender, String line)
+            throws Exception {
+        final String[] args = line.isEmpty() ? new String[0] : line
+                .split(" ");
+        return callSync(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                PluginCommand command = commands.get("personalmotd");
+                return command.getExecutor() != null
+                        && command.getExecutor().onCommand(sender, command,
+                                "pmotd", args);
+            }
+        });
+    }
+    
+    /**
+     * @return Everything thrown by tasks and recorded by tests, as well as any
+     *         message logged as severe
+     */
+    public List<String> getFailures() {
+        List<String> result = new ArrayList<String>();
+        synchronized (failures) {
+            for (Throwable t : failures) {
+                result.add(t.toString());
+            }
+        }
+        synchronized (severe) {
+            result.addAll(severe);
+        }
+        return result;
+    }
+    
+    /**
+     * @param plugin
+     *            Plugin to look up
+     * @return Event listener registered by the plugin, or null if none
+     */
+    public EventListener getListener(Plugin plugin) {
+        return (EventListener) listeners.get(plugin);
+    }
+    
+    /**
+     * @return The Bukkit server interface
+     */
+    public Server getServer() {
+        return server;
+    }
+    
+    /**
+     * @return A new icon
+     */
+    private CachedServerIcon newIcon() {
+        return proxy(CachedServerIcon.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return unsupported(method);
+            }
+        });
+    }
+    
+    /**
+     * @param messages
+     *            List receiving every message sent to the sender
+     * @return Command sender with every permission
+     */
+    public CommandSender newSender(final List<String> messages) {
+        return proxy(CommandSender.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("sendMessage")) {
+                    if (args[0] instanceof String[]) {
+                        Collections.addAll(messages, (String[]) args[0]);
+                    } else {
+                        messages.add((String) args[0]);
+                    }
+                    return null;
+                }
+                if (name.equals("getName")) {
+                    return "Tester";
+                }
+                if (name.equals("getServer")) {
+                    return server;
+                }
+                if (name.equals("hasPermission") || name.equals("isOp")) {
+                    return true;
+                }
+                return unsupported(method);
+            }
+        });
+    }
+    
+    /**
+     * @param playerName
+     *            Name of the player
+     * @return Player that knows only its name
+     */
+    public Player newPlayer(final String playerName) {
+        return proxy(Player.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getName") || name.equals("getDisplayName")
+                        || name.equals("getPlayerListName")) {
+                    return playerName;
+                }
+                if (name.equals("getServer")) {
+                    return server;
+                }
+                return unsupported(method);
+            }
+        });
+    }
+    
+    /**
+     * Record a failure seen by a test thread.
+     * 
+     * @param failure
+     *            What went wrong
+     */
+    public void recordFailure(Throwable failure) {
+        failures.add(failure);
+    }
+    
+    /**
+     * Register a command, as the server does for each command in plugin.yml.
+     * 
+     * @param plugin
+     *            Plugin owning the command
+     * @param name
+     *            Name of the command
+     */
+    public void registerCommand(Plugin plugin, String name) {
+        commands.put(name, new StubCommand(name, plugin));
+    }
+    
+    /**
+     * Handle a call to the scheduler.
+     * 
+     * @param method
+     *            Method called
+     * @param args
+     *            Arguments of the call
+     * @return Result of the call
+     */
+    private Object schedule(Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("runTask") || name.equals("runTaskAsynchronously")) {
+            Task task = new Task((Plugin) args[0], (Runnable) args[1],
+                    name.equals("runTask"));
+            tasks.put(task.id, task);
+            task.execute();
+            return toBukkitTask(task);
+        }
+        if (name.equals("runTaskTimerAsynchronously")) {
+            final Task task = new Task((Plugin) args[0], (Runnable) args[1],
+                    false);
+            tasks.put(task.id, task);
+            task.timer = timers.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    task.execute();
+                }
+            }, TICK * (Long) args[2], TICK * Math.max(1L, (Long) args[3]),
+                    TimeUnit.MILLISECONDS);
+            return toBukkitTask(task);
+        }
+        if (name.equals("cancelTask")) {
+            Task task = tasks.get(args[0]);
+            if (task != null) {
+                task.cancel();
+            }
+            return null;
+        }
+        if (name.equals("cancelTasks")) {
+            for (Task task : tasks.values()) {
+                if (task.owner == args[0]) {
+                    task.cancel();
+                }
+            }
+            return null;
+        }
+        return unsupported(method);
+    }
+    
+    /**
+     * Handle a call to the server.
+     * 
+     * @param method
+     *            Method called
+     * @param args
+     *            Arguments of the call
+     * @return Result of the call
+     * @throws Exception
+     */
+    private Object serve(Method method, Object[] args) throws Exception {
+        String name = method.getName();
+        if (name.equals("getName") || name.equals("getVersion")
+                || name.equals("getBukkitVersion")) {
+            return "StubServer";
+        }
+        if (name.equals("getLogger")) {
+            return logger;
+        }
+        if (name.equals("getMotd")) {
+            return motd;
+        }
+        if (name.equals("getConsoleSender")) {
+            return null;
+        }
+        if (name.equals("getScheduler")) {
+            return scheduler;
+        }
+        if (name.equals("getPluginManager")) {
+            return pluginManager;
+        }
+        if (name.equals("getPluginCommand")) {
+            return commands.get(args[0]);
+        }
+        if (name.equals("getServerIcon")) {
+            return serverIcon;
+        }
+        if (name.equals("loadServerIcon")) {
+            BufferedImage image = args[0] instanceof File ? ImageIO
+                    .read((File) args[0]) : (BufferedImage) args[0];
+            if (image == null || image.getWidth() != 64
+                    || image.getHeight() != 64) {
+                throw new IllegalArgumentException("Must be 64 pixels wide "
+                        + "and 64 pixels high");
+            }
+            return newIcon();
+        }
+        return unsupported(method);
+    }
+    
+    /**
+     * Set the MOTD given to server list pings.
+     * 
+     * @param motd
+     *            New MOTD
+     */
+    public void setMotd(String motd) {
+        this.motd = motd;
+    }
+    
+    /**
+     * @param task
+     *            Scheduled task
+     * @return Handle of the task for Bukkit
+     */
+    private BukkitTask toBukkitTask(final Task task) {
+        return proxy(BukkitTask.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getTaskId")) {
+                    return task.id;
+                }
+                if (name.equals("getOwner")) {
+                    return task.owner;
+                }
+                if (name.equals("isSync")) {
+                    return task.sync;
+                }
+                if (name.equals("cancel")) {
+                    task.cancel();
+                    return null;
+                }
+                return unsupported(method);
+            }
+        });
+    }
+    
+    /**
+     * Forget a disabled plugin's listener and cancel its tasks, as the server
+     * does after disabling a plugin.
+     * 
+     * @param plugin
+     *            Plugin that was disabled
+     */
+    public void unregister(Plugin plugin) {
+        listeners.remove(plugin);
+        for (Task task : tasks.values()) {
+            if (task.owner == plugin) {
+                task.cancel();
+            }
+        }
+    }
+    
+}